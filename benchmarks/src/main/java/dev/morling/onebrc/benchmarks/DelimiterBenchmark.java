@@ -0,0 +1,108 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.benchmarks;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dev.morling.onebrc.engine.Memory;
+import dev.morling.onebrc.engine.SwarLineParser;
+
+/**
+ * Finding the length of the name, i.e. the position of the {@code ';'} from the line start.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview", "--add-modules=jdk.incubator.vector" })
+public class DelimiterBenchmark {
+
+    // Species selection of CalculateAverage_merykitty.
+    private static final VectorSpecies<Byte> BYTE_SPECIES = ByteVector.SPECIES_PREFERRED.length() >= 32
+            ? ByteVector.SPECIES_256
+            : ByteVector.SPECIES_128;
+
+    // SWAR search a long at a time, as in thomaswue's parse loop.
+    @Benchmark
+    @OperationsPerInvocation(Lines.COUNT)
+    public long findDelimiter(Lines lines) {
+        long[] starts = lines.lineStarts;
+        long address = lines.address;
+        long sum = 0;
+        for (int i = 0; i < Lines.COUNT; i++) {
+            long pos = address + starts[i];
+            long delimiter;
+            while ((delimiter = SwarLineParser.findDelimiter(Memory.getLong(pos))) == 0) {
+                pos += Long.BYTES;
+            }
+            sum += pos - address - starts[i] + (Long.numberOfTrailingZeros(delimiter) >>> 3);
+        }
+        return sum;
+    }
+
+    // Vector compare of merykitty's iterate, with its scalar fallback for long names.
+    @Benchmark
+    @OperationsPerInvocation(Lines.COUNT)
+    public long vectorCompare(Lines lines) {
+        long[] starts = lines.lineStarts;
+        MemorySegment segment = lines.segment;
+        long sum = 0;
+        for (int i = 0; i < Lines.COUNT; i++) {
+            long offset = starts[i];
+            var line = ByteVector.fromMemorySegment(BYTE_SPECIES, segment, offset, ByteOrder.nativeOrder());
+            int keySize = line.compare(VectorOperators.EQ, ';').firstTrue();
+            if (keySize == BYTE_SPECIES.vectorByteSize()) {
+                while (segment.get(ValueLayout.JAVA_BYTE, offset + keySize) != ';') {
+                    keySize++;
+                }
+            }
+            sum += keySize;
+        }
+        return sum;
+    }
+
+    // Byte at a time, as a reference.
+    @Benchmark
+    @OperationsPerInvocation(Lines.COUNT)
+    public long scalar(Lines lines) {
+        long[] starts = lines.lineStarts;
+        long address = lines.address;
+        long sum = 0;
+        for (int i = 0; i < Lines.COUNT; i++) {
+            long pos = address + starts[i];
+            while (Memory.getByte(pos) != ';') {
+                pos++;
+            }
+            sum += pos - address - starts[i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dev.morling.onebrc.engine.ResultTable;
+
+/**
+ * Hash functions from name words to an index into a table of {@link ResultTable#DEFAULT_CAPACITY}
+ * slots.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview", "--add-modules=jdk.incubator.vector" })
+public class HashBenchmark {
+
+    private static final Object[] TABLE = new Object[ResultTable.DEFAULT_CAPACITY];
+    private static final int MASK = TABLE.length - 1;
+
+    // thomaswue's fold of the xor of the name words.
+    @Benchmark
+    @OperationsPerInvocation(Lines.COUNT)
+    public int hashToIndex(Lines lines) {
+        long[] hashes = lines.hashes;
+        int sum = 0;
+        for (int i = 0; i < Lines.COUNT; i++) {
+            sum += ResultTable.hashToIndex(hashes[i], TABLE);
+        }
+        return sum;
+    }
+
+    // merykitty's PoorManMap.hash over the first and last 4 bytes of the name.
+    @Benchmark
+    @OperationsPerInvocation(Lines.COUNT)
+    public int fxHash(Lines lines) {
+        int[] x = lines.firstInts;
+        int[] y = lines.lastInts;
+        int sum = 0;
+        for (int i = 0; i < Lines.COUNT; i++) {
+            sum += fxHash(x[i], y[i]) & MASK;
+        }
+        return sum;
+    }
+
+    // vemanaNonIdiomatic's doHash.
+    @Benchmark
+    @OperationsPerInvocation(Lines.COUNT)
+    public int polynomial(Lines lines) {
+        long[] hashes = lines.hashes;
+        int sum = 0;
+        for (int i = 0; i < Lines.COUNT; i++) {
+            sum += polynomial(hashes[i]) & MASK;
+        }
+        return sum;
+    }
+
+    static int fxHash(int x, int y) {
+        int seed = 0x9E3779B9;
+        int rotate = 5;
+        return (Integer.rotateLeft(x * seed, rotate) ^ y) * seed; // FxHash
+    }
+
+    static int polynomial(long value) {
+        long hash = 31L * (int) value + (int) (value >> 32);
+        return (int) (hash ^ (hash >> 17) ^ (hash >> 28));
+    }
+}
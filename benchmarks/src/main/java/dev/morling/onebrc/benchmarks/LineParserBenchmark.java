@@ -0,0 +1,124 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dev.morling.onebrc.engine.AggregationTable;
+import dev.morling.onebrc.engine.HistogramTable;
+import dev.morling.onebrc.engine.LineParser;
+import dev.morling.onebrc.engine.PerfectHashTable;
+import dev.morling.onebrc.engine.ResultTable;
+import dev.morling.onebrc.engine.StationDictionary;
+import dev.morling.onebrc.engine.StationTable;
+import dev.morling.onebrc.engine.SwarLineParser;
+import dev.morling.onebrc.engine.VectorLineParser;
+import jdk.incubator.vector.ByteVector;
+
+/**
+ * The complete per-line cost of an engine parser: delimiter search, hashing, table lookup and
+ * temperature conversion together, for comparison with the sum of the isolated kernels, with the
+ * off-heap {@link StationTable}, with the {@link PerfectHashTable} over a dictionary of all names of
+ * the block, and with the additional histogram counting of {@link HistogramTable}. The
+ * {@link VectorLineParser}s are the other candidates of {@code KernelDispatcher}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview", "--add-modules=jdk.incubator.vector" })
+@State(Scope.Thread)
+public class LineParserBenchmark {
+
+    private final LineParser swar = new SwarLineParser();
+    private final LineParser vector256 = new VectorLineParser(ByteVector.SPECIES_256);
+    private final LineParser vector512 = new VectorLineParser(ByteVector.SPECIES_512);
+    private AggregationTable table;
+    private AggregationTable stations;
+    private AggregationTable histograms;
+    private StationDictionary dictionary;
+    private AggregationTable perfectHash;
+
+    @Setup(Level.Trial)
+    public void buildDictionary(Lines lines) throws InterruptedException {
+        dictionary = StationDictionary.build(Arrays.asList(lines.names), 1);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        table = new ResultTable();
+        stations = new StationTable();
+        histograms = new HistogramTable();
+        perfectHash = new PerfectHashTable(dictionary);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Lines.COUNT)
+    public AggregationTable swar(Lines lines) {
+        swar.parse(lines.address, lines.address + lines.size, table);
+        return table;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Lines.COUNT)
+    public AggregationTable swarStationTable(Lines lines) {
+        swar.parse(lines.address, lines.address + lines.size, stations);
+        return stations;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Lines.COUNT)
+    public AggregationTable vector256StationTable(Lines lines) {
+        vector256.parse(lines.address, lines.address + lines.size, stations);
+        return stations;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Lines.COUNT)
+    public AggregationTable vector512StationTable(Lines lines) {
+        vector512.parse(lines.address, lines.address + lines.size, stations);
+        return stations;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Lines.COUNT)
+    public AggregationTable swarPerfectHash(Lines lines) {
+        swar.parse(lines.address, lines.address + lines.size, perfectHash);
+        return perfectHash;
+    }
+
+    // The same loop with per-temperature counters, i.e. the overhead of --percentiles.
+    @Benchmark
+    @OperationsPerInvocation(Lines.COUNT)
+    public AggregationTable swarHistogram(Lines lines) {
+        swar.parse(lines.address, lines.address + lines.size, histograms);
+        return histograms;
+    }
+}
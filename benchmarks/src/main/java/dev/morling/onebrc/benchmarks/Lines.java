@@ -0,0 +1,171 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.rschwietzke.FastRandom;
+
+import dev.morling.onebrc.engine.SwarLineParser;
+
+/**
+ * A deterministic block of {@link #COUNT} measurement lines in native memory, together with the
+ * per-line inputs of the individual kernels, so that each benchmark only measures its kernel.
+ */
+@State(Scope.Benchmark)
+public class Lines {
+
+    public static final int COUNT = 4096;
+
+    private static final ValueLayout.OfLong JAVA_LONG_LT = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    // Slack after the last line for kernels that read a full long or vector.
+    private static final int PADDING = 128;
+
+    @Param({ "413", "10000" })
+    public int keys;
+
+    @Param({ "3", "26" })
+    public int maxNameLength;
+
+    private Arena arena;
+    public byte[][] names;
+    public MemorySegment segment;
+    public long address;
+    public long size;
+
+    // Offsets of the line starts and the temperatures in the segment.
+    public long[] lineStarts = new long[COUNT];
+    public long[] numberStarts = new long[COUNT];
+
+    // First 8 bytes of each line and each temperature, as read by the SWAR kernels.
+    public long[] nameWords = new long[COUNT];
+    public long[] numberWords = new long[COUNT];
+
+    // Name hash as computed by SwarLineParser, and the two ints merykitty's FxHash is fed with.
+    public long[] hashes = new long[COUNT];
+    public int[] firstInts = new int[COUNT];
+    public int[] lastInts = new int[COUNT];
+
+    /**
+     * Returns {@code keys} distinct names of 1 to {@code maxNameLength} lowercase letters, or of the
+     * width of the prefix if more are needed to tell them apart. Unique by construction: the index in
+     * base 26 as a fixed-width letter prefix, then random letters. With a fixed width, no name is the
+     * prefix of another plus random letters.
+     */
+    public static byte[][] names(FastRandom random, int keys, int maxNameLength) {
+        byte[][] names = new byte[keys][];
+        int width = 1;
+        for (long limit = 26; limit < keys; limit *= 26) {
+            width++;
+        }
+        for (int i = 0; i < keys; i++) {
+            StringBuilder name = new StringBuilder();
+            for (int digits = i, j = 0; j < width; j++, digits /= 26) {
+                name.insert(0, (char) ('a' + digits % 26));
+            }
+            int length = Math.max(width, 1 + random.nextInt(maxNameLength));
+            while (name.length() < length) {
+                name.append((char) ('a' + random.nextInt(26)));
+            }
+            names[i] = name.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+        return names;
+    }
+
+    /**
+     * Returns the measurement line of the given name with a random temperature, newline included.
+     */
+    public static byte[] line(FastRandom random, byte[] name) {
+        int temperature = random.nextInt(1999) - 999;
+        byte[] value = (";" + (temperature < 0 ? "-" : "") + Math.abs(temperature) / 10 + "." + Math.abs(temperature) % 10 + "\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        byte[] line = Arrays.copyOf(name, name.length + value.length);
+        System.arraycopy(value, 0, line, name.length, value.length);
+        return line;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        FastRandom random = new FastRandom(0x1BC);
+        names = names(random, keys, maxNameLength);
+
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        int[] nameIndexes = new int[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            nameIndexes[i] = random.nextInt(keys);
+            text.writeBytes(line(random, names[nameIndexes[i]]));
+        }
+        byte[] bytes = text.toByteArray();
+
+        arena = Arena.ofShared();
+        segment = arena.allocate(bytes.length + PADDING, 64);
+        MemorySegment.copy(MemorySegment.ofArray(bytes), 0, segment, 0, bytes.length);
+        address = segment.address();
+        size = bytes.length;
+
+        long offset = 0;
+        for (int i = 0; i < COUNT; i++) {
+            int nameLength = names[nameIndexes[i]].length;
+            lineStarts[i] = offset;
+            numberStarts[i] = offset + nameLength + 1;
+            nameWords[i] = segment.get(JAVA_LONG_LT, offset);
+            numberWords[i] = segment.get(JAVA_LONG_LT, numberStarts[i]);
+            hashes[i] = hash(offset);
+            if (nameLength >= Integer.BYTES) {
+                firstInts[i] = segment.get(ValueLayout.JAVA_INT_UNALIGNED, offset);
+                lastInts[i] = segment.get(ValueLayout.JAVA_INT_UNALIGNED, offset + nameLength - Integer.BYTES);
+            }
+            else {
+                firstInts[i] = segment.get(ValueLayout.JAVA_BYTE, offset);
+                lastInts[i] = segment.get(ValueLayout.JAVA_BYTE, offset + nameLength - 1);
+            }
+            while (segment.get(ValueLayout.JAVA_BYTE, offset++) != '\n')
+                ;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        arena.close();
+    }
+
+    // The xor of the name words, the last one masked, as SwarLineParser feeds it to the table.
+    private long hash(long offset) {
+        long hash = 0;
+        while (true) {
+            long word = segment.get(JAVA_LONG_LT, offset);
+            long delimiter = SwarLineParser.findDelimiter(word);
+            if (delimiter != 0) {
+                return hash ^ SwarLineParser.mask(word, Long.numberOfTrailingZeros(delimiter) >>> 3);
+            }
+            hash ^= word;
+            offset += Long.BYTES;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.benchmarks;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rschwietzke.FastRandom;
+
+import dev.morling.onebrc.engine.AggregationTable;
+import dev.morling.onebrc.engine.SortedResults;
+import dev.morling.onebrc.engine.StationTable;
+import dev.morling.onebrc.engine.SwarLineParser;
+import dev.morling.onebrc.engine.TreeMapMerger;
+
+/**
+ * The final merge of a run with many stations: {@link #TABLES} worker tables that each hold every
+ * station once, merged into a sorted result by the serial {@link TreeMapMerger} (a {@code String}
+ * and a map entry per station) or by the parallel tree reduction and sort of {@link SortedResults}
+ * (ms/op).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview" })
+@State(Scope.Benchmark)
+public class MergeBenchmark {
+
+    public static final int TABLES = 8;
+
+    @Param({ "10000", "1000000" })
+    public int keys;
+
+    private List<AggregationTable> tables;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        FastRandom random = new FastRandom(0x1BC);
+        byte[][] names = Lines.names(random, keys, 26);
+
+        tables = new ArrayList<>();
+        try (Arena arena = Arena.ofConfined()) {
+            // One line per station, at most 26 + 7 bytes, plus slack for the parser to read past the end.
+            MemorySegment segment = arena.allocate((long) keys * 34 + 64, 64);
+            for (int t = 0; t < TABLES; t++) {
+                long offset = 0;
+                for (byte[] name : names) {
+                    byte[] line = Lines.line(random, name);
+                    MemorySegment.copy(MemorySegment.ofArray(line), 0, segment, offset, line.length);
+                    offset += line.length;
+                }
+                StationTable table = new StationTable();
+                new SwarLineParser().parse(segment.address(), segment.address() + offset, table);
+                tables.add(table);
+            }
+        }
+    }
+
+    @Benchmark
+    public Object treeMap() {
+        return new TreeMapMerger().merge(tables);
+    }
+
+    @Benchmark
+    public Object sortedResults() {
+        return SortedResults.merge(tables);
+    }
+}
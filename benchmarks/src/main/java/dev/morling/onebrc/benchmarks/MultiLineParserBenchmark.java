@@ -0,0 +1,112 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.benchmarks;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dev.morling.onebrc.CalculateAverage_merykitty;
+import dev.morling.onebrc.engine.AggregationTable;
+import dev.morling.onebrc.engine.GatherLineParser;
+import dev.morling.onebrc.engine.LineParser;
+import dev.morling.onebrc.engine.StationTable;
+import dev.morling.onebrc.engine.SwarLineParser;
+
+/**
+ * One line per SIMD lane ({@link GatherLineParser}) against vectorising within a line, as
+ * merykitty's {@code iterate} does with its own map, and against the scalar SWAR loop of the
+ * engine, for the complete parse of a block of lines.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview", "--add-modules=jdk.incubator.vector" })
+@State(Scope.Thread)
+public class MultiLineParserBenchmark {
+
+    // CalculateAverage_merykitty.iterate(PoorManMap, MemorySegment, long) and the PoorManMap
+    // constructor, both private to that class.
+    private static final MethodHandle ITERATE;
+    private static final MethodHandle NEW_MAP;
+
+    static {
+        try {
+            var lookup = MethodHandles.privateLookupIn(CalculateAverage_merykitty.class, MethodHandles.lookup());
+            Class<?> map = Class.forName(CalculateAverage_merykitty.class.getName() + "$PoorManMap");
+            ITERATE = lookup.findStatic(CalculateAverage_merykitty.class, "iterate", MethodType.methodType(long.class, map, MemorySegment.class, long.class))
+                    .asType(MethodType.methodType(long.class, Object.class, MemorySegment.class, long.class));
+            NEW_MAP = lookup.findConstructor(map, MethodType.methodType(void.class)).asType(MethodType.methodType(Object.class));
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final LineParser swar = new SwarLineParser();
+    private final LineParser gather = new GatherLineParser();
+    private AggregationTable swarTable;
+    private AggregationTable gatherTable;
+    private Object merykittyMap;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws Throwable {
+        swarTable = new StationTable();
+        gatherTable = new StationTable();
+        merykittyMap = (Object) NEW_MAP.invokeExact();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Lines.COUNT)
+    public AggregationTable swar(Lines lines) {
+        swar.parse(lines.address, lines.address + lines.size, swarTable);
+        return swarTable;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Lines.COUNT)
+    public AggregationTable gather(Lines lines) {
+        gather.parse(lines.address, lines.address + lines.size, gatherTable);
+        return gatherTable;
+    }
+
+    // The block is padded, so iterate() can run up to its end without the scalar tail loop.
+    @Benchmark
+    @OperationsPerInvocation(Lines.COUNT)
+    public Object merykittyIterate(Lines lines) throws Throwable {
+        long offset = 0;
+        while (offset < lines.size) {
+            offset = (long) ITERATE.invokeExact(merykittyMap, lines.segment, offset);
+        }
+        return merykittyMap;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.foreign.Arena;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rschwietzke.FastRandom;
+
+import dev.morling.onebrc.engine.Aggregate;
+import dev.morling.onebrc.engine.Engine;
+import dev.morling.onebrc.engine.Input;
+
+/**
+ * A complete engine run, parse and merge, on a generated file of {@link #LINES} lines with 1k to
+ * 1M distinct stations, with one {@code StationTable} per worker ({@link Engine#defaults()}) and
+ * with the {@code SharedStationTable} of {@link Engine#sharedTable()}. Run on a machine with as many
+ * cores as the target, as the memory of the per-worker tables grows with the number of cores.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview" })
+@State(Scope.Benchmark)
+public class SharedTableBenchmark {
+
+    public static final int LINES = 1 << 24;
+
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int keys;
+
+    @Param({ "perWorker", "shared" })
+    public String table;
+
+    private Path file;
+    private Input input;
+    private Engine engine;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        FastRandom random = new FastRandom(0x1BC);
+        byte[][] names = Lines.names(random, keys, 26);
+
+        file = Files.createTempFile("shared-table", ".txt");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)) {
+            for (int i = 0; i < LINES; i++) {
+                out.write(Lines.line(random, names[random.nextInt(keys)]));
+            }
+        }
+        input = Input.map(file, Arena.ofShared());
+        engine = "shared".equals(table) ? Engine.sharedTable() : Engine.defaults();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        input.close();
+        Files.delete(file);
+    }
+
+    @Benchmark
+    public SortedMap<String, Aggregate> aggregate() {
+        return engine.aggregate(input);
+    }
+}
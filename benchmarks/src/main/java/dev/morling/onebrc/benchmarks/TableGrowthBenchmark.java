@@ -0,0 +1,104 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.benchmarks;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rschwietzke.FastRandom;
+
+import dev.morling.onebrc.engine.LineParser;
+import dev.morling.onebrc.engine.StationTable;
+import dev.morling.onebrc.engine.SwarLineParser;
+
+/**
+ * The parse loop of the engine into a fresh {@link StationTable} on a generated file of
+ * {@link #LINES} lines, with up to a million distinct stations, so that the table grows (and
+ * rehashes incrementally) during the run. Starting from the capacity that fits all stations gives
+ * the cost of the same run without growth.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview" })
+@State(Scope.Thread)
+public class TableGrowthBenchmark {
+
+    public static final int LINES = 1 << 22;
+
+    @Param({ "10000", "1000000" })
+    public int keys;
+
+    @Param({ "16384", "4194304" })
+    public int initialCapacity;
+
+    private final LineParser swar = new SwarLineParser();
+    private Arena arena;
+    private long address;
+    private long size;
+    private StationTable table;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        FastRandom random = new FastRandom(0x1BC);
+        byte[][] names = Lines.names(random, keys, 26);
+
+        arena = Arena.ofShared();
+        // Lines are at most 26 + 7 bytes, plus slack for the parser to read past the end.
+        MemorySegment segment = arena.allocate((long) LINES * 34 + 64, 64);
+        long offset = 0;
+        for (int i = 0; i < LINES; i++) {
+            byte[] line = Lines.line(random, names[random.nextInt(keys)]);
+            MemorySegment.copy(MemorySegment.ofArray(line), 0, segment, offset, line.length);
+            offset += line.length;
+        }
+        address = segment.address();
+        size = offset;
+    }
+
+    @Setup(Level.Invocation)
+    public void newTable() {
+        table = new StationTable(initialCapacity, StationTable.DEFAULT_LOAD_FACTOR);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        arena.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public StationTable parse() {
+        swar.parse(address, address + size, table);
+        return table;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dev.morling.onebrc.CalculateAverage_hundredwatt;
+import dev.morling.onebrc.CalculateAverage_vemanaNonIdiomatic.TemperatureLookup;
+import dev.morling.onebrc.engine.SwarLineParser;
+
+/**
+ * Temperature parsing: each kernel gets the 8 bytes starting at the temperature and returns the
+ * value in tenths of a degree.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview", "--add-modules=jdk.incubator.vector" })
+public class TemperatureParseBenchmark {
+
+    // Perfect hash of CalculateAverage_hundredwatt, the table is private to that class.
+    private static final int TEMPERATURE_SLOTS = CalculateAverage_hundredwatt.TEMPERATURE_SLOTS;
+    private static final long PERFECT_HASH_SEED = -1982870890352534081L;
+    private static final short[] TEMPERATURES = perfectHashTable();
+
+    // Branchless conversion of thomaswue and merykitty (by Quan Anh Mai).
+    @Benchmark
+    @OperationsPerInvocation(Lines.COUNT)
+    public int convertIntoNumber(Lines lines) {
+        long[] words = lines.numberWords;
+        int sum = 0;
+        for (int i = 0; i < Lines.COUNT; i++) {
+            long word = words[i];
+            sum += SwarLineParser.convertIntoNumber(SwarLineParser.decimalSepPos(word), word);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Lines.COUNT)
+    public int perfectHashLookup(Lines lines) {
+        long[] words = lines.numberWords;
+        int sum = 0;
+        for (int i = 0; i < Lines.COUNT; i++) {
+            sum += perfectHash(words[i]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Lines.COUNT)
+    public int temperatureLookup(Lines lines) {
+        long[] words = lines.numberWords;
+        int sum = 0;
+        for (int i = 0; i < Lines.COUNT; i++) {
+            sum += lookup(words[i]);
+        }
+        return sum;
+    }
+
+    // Plain byte-at-a-time parsing, as a reference.
+    @Benchmark
+    @OperationsPerInvocation(Lines.COUNT)
+    public int scalar(Lines lines) {
+        long[] words = lines.numberWords;
+        int sum = 0;
+        for (int i = 0; i < Lines.COUNT; i++) {
+            long word = words[i];
+            int sign = 1;
+            if ((word & 0xFF) == '-') {
+                sign = -1;
+                word >>>= 8;
+            }
+            int value = 0;
+            for (int c = (int) (word & 0xFF); c != '\n'; word >>>= 8, c = (int) (word & 0xFF)) {
+                if (c != '.') {
+                    value = value * 10 + (c - '0');
+                }
+            }
+            sum += sign * value;
+        }
+        return sum;
+    }
+
+    static int perfectHash(long word) {
+        long hasvalue = (word - 0x0B0B0B0B0B0B0B0BL) & 0x8080808080808080L;
+        int newlinePos = Long.numberOfTrailingZeros(hasvalue) - 8;
+        word = word & (~(-(1L << newlinePos)));
+        long temperatureHash = (word * PERFECT_HASH_SEED) & ~(1L << 63);
+        return TEMPERATURES[(int) (temperatureHash % TEMPERATURE_SLOTS)];
+    }
+
+    // CalculateAverage_vemanaNonIdiomatic.FastShardProcessorState.readTemperature
+    static int lookup(long data) {
+        long d = data ^ (data >> 4);
+        int value;
+        if ((data & 0xFF) == '-') {
+            value = TemperatureLookup.firstNeg(d >> 8) + TemperatureLookup.secondNeg(d >> 24);
+        }
+        else {
+            value = TemperatureLookup.firstPos(d >> 0) + TemperatureLookup.secondPos(d >> 16);
+        }
+        // The low 3 bits hold the number of bytes consumed.
+        return value >> 3;
+    }
+
+    private static short[] perfectHashTable() {
+        short[] temperatures = new short[TEMPERATURE_SLOTS];
+        for (short i = -999; i <= 999; i++) {
+            String text = (i < 0 ? "-" : "") + Math.abs(i) / 10 + "." + Math.abs(i) % 10;
+            long word = 0;
+            for (int b = 0; b < text.length(); b++) {
+                word |= ((long) text.charAt(b)) << (b << 3);
+            }
+            long h = (word * PERFECT_HASH_SEED) & ~(1L << 63);
+            int pos = (int) (h % TEMPERATURE_SLOTS);
+            if (temperatures[pos] != 0) {
+                throw new IllegalStateException("collision at " + pos);
+            }
+            temperatures[pos] = i;
+        }
+        return temperatures;
+    }
+}
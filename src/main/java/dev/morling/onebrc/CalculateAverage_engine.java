@@ -0,0 +1,216 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+
+import dev.morling.onebrc.engine.Aggregate;
+import dev.morling.onebrc.engine.AggregationServer;
+import dev.morling.onebrc.engine.ColumnarFile;
+import dev.morling.onebrc.engine.Engine;
+import dev.morling.onebrc.engine.FileSet;
+import dev.morling.onebrc.engine.KernelDispatcher;
+import dev.morling.onebrc.engine.LineParser;
+import dev.morling.onebrc.engine.ResultWriter;
+import dev.morling.onebrc.engine.SortedResults;
+import dev.morling.onebrc.engine.StationDictionary;
+
+/**
+ * Runs the shared {@link Engine} in its default configuration, which is the pipeline of
+ * {@code CalculateAverage_thomaswue} (SWAR parsing, open-addressing table) with a table that grows with the number of
+ * stations, and a parallel merge and sort of the tables instead of a TreeMap (see {@link SortedResults}). Rather than
+ * running in a subprocess that exits before the mapping is torn down, as that solution does, files are mapped range by
+ * range, the ranges are claimed lazily by the workers, which unmap the ones they are done with, and they are cut at the
+ * offsets of the {@code .idx} file if there is one (see {@link Engine#sortedInRanges}). The checkpoint and NUMA modes
+ * map the whole file and use vemana's lazy shard scheduling.
+ * <p>
+ * Usage: {@code CalculateAverage_engine [--checkpoint=<file> | --columnar | --percentiles] [--numa] [--dictionary=<file>] [--kernel=<name>] [--format=<text|csv|json|binary>] [file... | -]},
+ * where {@code -} streams the input from stdin (e.g. {@code zcat measurements.txt.gz | ...}) instead of mapping a file. With
+ * {@code --checkpoint}, the results are persisted so that the next run on the same (append-only)
+ * file only processes the lines appended in between. With {@code --columnar}, the file is one
+ * written by {@code ConvertToColumnar} and is aggregated by scanning its columns. With
+ * {@code --percentiles}, each station is printed as {@code min/mean/max/p50/p90/p99}. Several files,
+ * directories (their {@code *.txt} files) or quoted globs are aggregated into one result, see
+ * {@link FileSet}. With {@code --numa}, the workers are grouped and pinned per NUMA node (see
+ * {@link Engine#numaAware()}), which changes nothing on a single-node machine. With {@code --dictionary},
+ * the stations are looked up in a perfect hash built offline by {@link CreateStationDictionary} (see
+ * {@link Engine#perfectHash}); stations that are not in it are still aggregated. The lines are parsed by the kernel
+ * of {@link KernelDispatcher} that is fastest on this machine: the first run times them on the first few MB of the
+ * first file, and later runs reuse the choice cached in {@code ~/.onebrc-kernel} (see {@link KernelDispatcher#choose}),
+ * until that file is deleted. With {@code --kernel}, the lines are parsed by the given kernel ({@code swar},
+ * {@code vector256} or {@code vector512}); {@code --kernel=auto} times them again, caches and reports the choice on stderr. With {@code --format}, the results are written in the given format of {@link ResultWriter}
+ * ({@code text} being the {@code TreeMap} one). In the default mode, the tables are merged and sorted in parallel
+ * into {@link SortedResults} and written as text or in the given format, without a {@code String} per station.
+ * <p>
+ * {@code --serve=<socket>} starts a resident {@link AggregationServer} instead, and
+ * {@code --connect=<socket> [file]} asks it for the result of a file (as does
+ * {@code echo /abs/path | nc -U <socket>}).
+ */
+public class CalculateAverage_engine {
+    private static final String FILE = "./measurements.txt";
+    private static final String STDIN = "-";
+    private static final String CHECKPOINT = "--checkpoint=";
+    private static final String COLUMNAR = "--columnar";
+    private static final String PERCENTILES = "--percentiles";
+    private static final String NUMA = "--numa";
+    private static final String DICTIONARY = "--dictionary=";
+    private static final String KERNEL = "--kernel=";
+    private static final String AUTO = "auto";
+    private static final String FORMAT = "--format=";
+    private static final String SERVE = "--serve=";
+    private static final String CONNECT = "--connect=";
+
+    public static void main(String[] args) throws IOException {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        boolean columnar = arguments.remove(COLUMNAR);
+        boolean percentiles = arguments.remove(PERCENTILES);
+        boolean numa = arguments.remove(NUMA);
+        Path checkpoint = option(arguments, CHECKPOINT);
+        Path serve = option(arguments, SERVE);
+        Path connect = option(arguments, CONNECT);
+        Path dictionary = option(arguments, DICTIONARY);
+        String kernel = value(arguments, KERNEL);
+        String formatName = value(arguments, FORMAT);
+        ResultWriter.Format format = formatName != null ? ResultWriter.Format.of(formatName) : null;
+        if (percentiles && checkpoint != null) {
+            // Checkpoints only hold min/max/sum/count.
+            throw new IllegalArgumentException(PERCENTILES + " cannot be combined with " + CHECKPOINT);
+        }
+        if (percentiles && dictionary != null) {
+            throw new IllegalArgumentException(PERCENTILES + " cannot be combined with " + DICTIONARY);
+        }
+        if (format != null && (percentiles || serve != null || connect != null)) {
+            // The formats only hold min/mean/max/count, the server answers in text.
+            throw new IllegalArgumentException(FORMAT + " cannot be combined with " + PERCENTILES + ", " + SERVE + " or " + CONNECT);
+        }
+        StationDictionary stations = dictionary != null ? StationDictionary.read(dictionary) : null;
+        if (serve != null) {
+            try (var server = new AggregationServer(engine(percentiles, numa, stations, kernel(kernel, List.of())), AggregationServer.DEFAULT_CACHED_FILES)) {
+                server.serve(serve);
+            }
+            return;
+        }
+        String file = arguments.isEmpty() ? FILE : arguments.get(0);
+        boolean multipleFiles = arguments.size() > 1 || (arguments.size() == 1 && !Files.isRegularFile(Path.of(file)) && !STDIN.equals(file));
+        if (multipleFiles && (checkpoint != null || columnar || connect != null)) {
+            throw new IllegalArgumentException("Several input files only work with the default and " + PERCENTILES + " modes");
+        }
+
+        if (connect != null) {
+            String response = AggregationServer.request(connect, Path.of(file));
+            System.out.println(response);
+            if (response == null || response.startsWith(AggregationServer.ERROR)) {
+                System.exit(1);
+            }
+            return;
+        }
+        if (STDIN.equals(file)) {
+            try (var channel = new FileInputStream(FileDescriptor.in).getChannel()) {
+                print(engine(percentiles, numa, stations, kernel(kernel, List.of())).aggregate(channel), format);
+            }
+            return;
+        }
+        if (columnar) {
+            try (ColumnarFile columns = ColumnarFile.open(Path.of(file))) {
+                print(columns.aggregate(Runtime.getRuntime().availableProcessors()), format);
+            }
+            System.out.close();
+            return;
+        }
+        List<Path> files = multipleFiles ? FileSet.resolve(arguments) : List.of(Path.of(file));
+        Engine engine = engine(percentiles, numa, stations, kernel(kernel, files));
+        if (checkpoint != null) {
+            print(engine.aggregate(Path.of(file), checkpoint), format);
+        }
+        else if (numa) {
+            print(multipleFiles ? engine.aggregate(files) : engine.aggregate(Path.of(file)), format);
+        }
+        else if (percentiles) {
+            System.out.println(engine.aggregateInRanges(files));
+        }
+        else {
+            ResultWriter.write(engine.sortedInRanges(files), format != null ? format : ResultWriter.Format.TEXT, new FileOutputStream(FileDescriptor.out));
+        }
+        System.out.close();
+    }
+
+    private static Engine engine(boolean percentiles, boolean numa, StationDictionary stations, LineParser parser) {
+        Engine engine = percentiles ? Engine.percentiles() : stations != null ? Engine.perfectHash(stations) : Engine.defaults();
+        if (parser != null) {
+            engine = engine.withParser(parser);
+        }
+        return numa ? engine.numaAware() : engine;
+    }
+
+    private static void print(SortedMap<String, ? extends Aggregate> results, ResultWriter.Format format) throws IOException {
+        if (format == null) {
+            System.out.println(results);
+        }
+        else {
+            ResultWriter.write(SortedResults.of(results), format, new FileOutputStream(FileDescriptor.out));
+        }
+    }
+
+    // The kernel of --kernel, or the chosen one. Without a file to calibrate on (stdin, server), the cached choice or null for the default one.
+    private static LineParser kernel(String name, List<Path> files) throws IOException {
+        if (name != null && !AUTO.equals(name)) {
+            return KernelDispatcher.kernel(name);
+        }
+        if (files.isEmpty()) {
+            KernelDispatcher.Choice cached = KernelDispatcher.cached();
+            if (name != null) {
+                System.err.println(cached != null ? cached : "Kernel " + KernelDispatcher.SWAR + " (no input file to calibrate on)");
+            }
+            return cached != null ? cached.kernel() : null;
+        }
+        if (name == null) {
+            return KernelDispatcher.choose(files.get(0)).kernel();
+        }
+        KernelDispatcher.Choice choice = KernelDispatcher.calibrate(files.get(0));
+        if (!choice.nanosPerByte().isEmpty()) {
+            KernelDispatcher.cache(choice);
+        }
+        System.err.println(choice);
+        return choice.kernel();
+    }
+
+    // Removes the option with the given prefix from the arguments and returns its value as a path, if any.
+    private static Path option(List<String> arguments, String prefix) {
+        String value = value(arguments, prefix);
+        return value != null ? Path.of(value) : null;
+    }
+
+    // Removes the option with the given prefix from the arguments and returns its value, if any.
+    private static String value(List<String> arguments, String prefix) {
+        String value = null;
+        for (String argument : List.copyOf(arguments)) {
+            if (argument.startsWith(prefix)) {
+                value = argument.substring(prefix.length());
+                arguments.remove(argument);
+            }
+        }
+        return value;
+    }
+}
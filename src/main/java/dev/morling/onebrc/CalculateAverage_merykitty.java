@@ -20,17 +20,20 @@ import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
 import java.lang.foreign.ValueLayout;
 import java.nio.ByteOrder;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileChannel.MapMode;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 import jdk.incubator.vector.ByteVector;
 import jdk.incubator.vector.VectorOperators;
 import jdk.incubator.vector.VectorSpecies;
 
+import dev.morling.onebrc.engine.Mapping;
+
+/**
+ * The mapping takes the paging hints of {@link Mapping} ({@code -Donebrc.mmap=populate,advise}).
+ */
 public class CalculateAverage_merykitty {
     private static final String FILE = "./measurements.txt";
     private static final VectorSpecies<Byte> BYTE_SPECIES = ByteVector.SPECIES_PREFERRED.length() >= 32
@@ -38,6 +41,7 @@ public class CalculateAverage_merykitty {
             : ByteVector.SPECIES_128;
     private static final ValueLayout.OfLong JAVA_LONG_LT = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
     private static final long KEY_MAX_SIZE = 100;
+    private static final Set<Mapping.Hint> HINTS = Mapping.hints();
 
     private static class Aggregator {
         private int keySize;
@@ -286,6 +290,7 @@ public class CalculateAverage_merykitty {
         if (offset == limit) {
             return aggrMap;
         }
+        Mapping.advise(data.address() + offset, limit - offset, HINTS);
 
         // The main loop, optimized for speed
         while (offset < limit - Math.max(BYTE_SPECIES.vectorByteSize(),
@@ -307,11 +312,11 @@ public class CalculateAverage_merykitty {
     }
 
     public static void main(String[] args) throws InterruptedException, IOException {
+        var probe = new Mapping.Probe();
         int processorCnt = Runtime.getRuntime().availableProcessors();
         var res = new TreeMap<String, Aggregator>();
-        try (var file = FileChannel.open(Path.of(FILE), StandardOpenOption.READ);
-                var arena = Arena.ofShared()) {
-            var data = file.map(MapMode.READ_ONLY, 0, file.size(), arena);
+        try (var arena = Arena.ofShared()) {
+            var data = Mapping.map(Path.of(FILE), arena, HINTS);
             long chunkSize = Math.ceilDiv(data.byteSize(), processorCnt);
             var threadList = new Thread[processorCnt];
             var resultList = new PoorManMap[processorCnt];
@@ -334,5 +339,6 @@ public class CalculateAverage_merykitty {
         }
 
         System.out.println(res);
+        probe.report("CalculateAverage_merykitty");
     }
 }
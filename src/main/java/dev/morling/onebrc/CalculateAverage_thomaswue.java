@@ -16,15 +16,17 @@
 package dev.morling.onebrc;
 
 import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.stream.IntStream;
 
+import dev.morling.onebrc.engine.Mapping;
+
 /**
  * Simple solution that memory maps the input file, then splits it into one segment per available core and uses
  * sun.misc.Unsafe to directly access the mapped memory. Uses a long at a time when checking for collision.
@@ -33,11 +35,15 @@ import java.util.stream.IntStream;
  * Perf stats:
  *     34,716,719,245      cpu_core/cycles/
  *     40,776,530,892      cpu_atom/cycles/
+ * <p>
+ * The mapping takes the paging hints of {@link Mapping} ({@code -Donebrc.mmap=populate,advise}) in JVM mode only; the
+ * native image ignores them.
  */
 public class CalculateAverage_thomaswue {
     private static final String FILE = "./measurements.txt";
     private static final int MIN_TEMP = -999;
     private static final int MAX_TEMP = 999;
+    private static final Set<Mapping.Hint> HINTS = Mapping.hints();
 
     // Holding the current result for a single city.
     private static class Result {
@@ -88,12 +94,16 @@ public class CalculateAverage_thomaswue {
             spawnWorker();
             return;
         }
+        Mapping.Probe probe = new Mapping.Probe();
         // Calculate input segments.
         int numberOfChunks = Runtime.getRuntime().availableProcessors();
         long[] chunks = getSegments(numberOfChunks);
 
         // Parallel processing of segments.
-        List<List<Result>> allResults = IntStream.range(0, chunks.length - 1).mapToObj(chunkIndex -> parseLoop(chunks[chunkIndex], chunks[chunkIndex + 1]))
+        List<List<Result>> allResults = IntStream.range(0, chunks.length - 1).mapToObj(chunkIndex -> {
+            Mapping.advise(chunks[chunkIndex], chunks[chunkIndex + 1] - chunks[chunkIndex], HINTS);
+            return parseLoop(chunks[chunkIndex], chunks[chunkIndex + 1]);
+        })
                 .map(resultArray -> {
                     List<Result> results = new ArrayList<>();
                     for (Result r : resultArray) {
@@ -107,6 +117,7 @@ public class CalculateAverage_thomaswue {
         // Final output.
         System.out.println(accumulateResults(allResults));
         System.out.close();
+        probe.report("CalculateAverage_thomaswue");
     }
 
     private static void spawnWorker() throws IOException {
@@ -325,24 +336,23 @@ public class CalculateAverage_thomaswue {
     }
 
     private static long[] getSegments(int numberOfChunks) throws IOException {
-        try (var fileChannel = FileChannel.open(Path.of(FILE), StandardOpenOption.READ)) {
-            long fileSize = fileChannel.size();
-            long segmentSize = (fileSize + numberOfChunks - 1) / numberOfChunks;
-            long[] chunks = new long[numberOfChunks + 1];
-            long mappedAddress = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize, java.lang.foreign.Arena.global()).address();
-            chunks[0] = mappedAddress;
-            long endAddress = mappedAddress + fileSize;
-            Scanner s = new Scanner(mappedAddress, mappedAddress + fileSize);
-            for (int i = 1; i < numberOfChunks; ++i) {
-                long chunkAddress = mappedAddress + i * segmentSize;
-                // Align to first row start.
-                while (chunkAddress < endAddress && (s.getLongAt(chunkAddress++) & 0xFF) != '\n')
-                    ;
-                chunks[i] = Math.min(chunkAddress, endAddress);
-            }
-            chunks[numberOfChunks] = endAddress;
-            return chunks;
+        MemorySegment mapped = Mapping.map(Path.of(FILE), Arena.global(), HINTS);
+        long fileSize = mapped.byteSize();
+        long segmentSize = (fileSize + numberOfChunks - 1) / numberOfChunks;
+        long[] chunks = new long[numberOfChunks + 1];
+        long mappedAddress = mapped.address();
+        chunks[0] = mappedAddress;
+        long endAddress = mappedAddress + fileSize;
+        Scanner s = new Scanner(mappedAddress, mappedAddress + fileSize);
+        for (int i = 1; i < numberOfChunks; ++i) {
+            long chunkAddress = mappedAddress + i * segmentSize;
+            // Align to first row start.
+            while (chunkAddress < endAddress && (s.getLongAt(chunkAddress++) & 0xFF) != '\n')
+                ;
+            chunks[i] = Math.min(chunkAddress, endAddress);
         }
+        chunks[numberOfChunks] = endAddress;
+        return chunks;
     }
 
     private static class Scanner {
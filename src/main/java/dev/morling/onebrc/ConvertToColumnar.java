@@ -0,0 +1,38 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.nio.file.Path;
+
+import dev.morling.onebrc.engine.ColumnarFile;
+import dev.morling.onebrc.engine.SwarLineParser;
+
+/**
+ * Converts a measurements file to the columnar format of {@link ColumnarFile}, which
+ * {@code calculate_average_engine.sh --columnar <file>} aggregates without parsing any text.
+ */
+public class ConvertToColumnar {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.out.println("Usage: convert_to_columnar.sh <measurements file> <columnar file>");
+            System.exit(1);
+        }
+        long start = System.currentTimeMillis();
+        long rows = ColumnarFile.convert(Path.of(args[0]), Path.of(args[1]), new SwarLineParser(), Runtime.getRuntime().availableProcessors());
+        System.out.printf("Wrote %,d rows to %s in %,d ms%n", rows, args[1], System.currentTimeMillis() - start);
+    }
+}
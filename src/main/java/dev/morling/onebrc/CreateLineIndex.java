@@ -0,0 +1,48 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.nio.file.Path;
+
+import dev.morling.onebrc.engine.Input;
+import dev.morling.onebrc.engine.LineIndex;
+
+/**
+ * Creates the {@code .idx} sidecar of a measurements file (see {@link LineIndex}), or reads the
+ * existing one, and prints the row count of the file.
+ */
+public class CreateLineIndex {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: create_line_index.sh <measurements file> [stride in MB]");
+            System.exit(1);
+        }
+        Path file = Path.of(args[0]);
+        long stride = args.length == 2 ? Long.parseLong(args[1]) * 1024 * 1024 : LineIndex.DEFAULT_STRIDE;
+
+        long start = System.currentTimeMillis();
+        LineIndex index = LineIndex.readFor(file);
+        if (index == null) {
+            try (Input input = Input.map(file)) {
+                index = LineIndex.build(input, stride);
+            }
+            index.writeFor(file);
+            System.out.printf("Wrote %s in %,d ms%n", LineIndex.pathFor(file), System.currentTimeMillis() - start);
+        }
+        System.out.printf("%,d rows%n", index.rows());
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.rschwietzke.FastRandom;
+
+import dev.morling.onebrc.engine.LineIndex;
+
+/**
+ * Generates measurements in parallel, reproducibly: the rows are split into shards of a fixed number
+ * of rows, each with its own {@link FastRandom} seeded from the seed and the shard number, so the
+ * file only depends on the seed and the row count (not on the number of threads or on scheduling).
+ * <p>
+ * Every shard is generated twice: first only to compute its size in bytes, which gives the offset of
+ * each shard, then to write it into the pre-sized, memory-mapped file at that offset. The shard
+ * boundaries and row counts are also written as the {@link LineIndex} of the file.
+ * <p>
+ * Station names are taken from {@code data/weather_stations.csv}, with a mean temperature derived
+ * from their latitude, or are synthetic, to stress the hash tables of the solutions: up to a million
+ * stations, names of up to 100 bytes in a mix of scripts, and Zipf-distributed frequencies (see
+ * {@code USAGE}). Temperatures are spread around the mean of the station with a standard deviation
+ * of about 11.6 degrees (the sum of four uniform draws).
+ */
+public class CreateMeasurementsParallel {
+
+    private static final Path STATIONS_FILE = Path.of("data/weather_stations.csv");
+    private static final int MAX_STATIONS = 1_000_000;
+    private static final int MAX_NAME_LENGTH = 100;
+    private static final int SHARD_ROWS = 1 << 20;
+    private static final int BUFFER_SIZE = 1 << 16;
+    // Longest name, delimiter, "-99.9" and newline.
+    private static final int MAX_ROW_LENGTH = MAX_NAME_LENGTH + 1 + 5 + 1;
+
+    private record Station(byte[] nameAndDelimiter, int meanTemperature) {
+    }
+
+    /**
+     * A writing system for synthetic names, as ranges of code points of the same UTF-8 length.
+     */
+    private enum Script {
+        LATIN(1, 'a', 'z'),
+        LATIN_EXTENDED(2, 0xC0, 0x17F),
+        GREEK(2, 0x3B1, 0x3C9),
+        CYRILLIC(2, 0x430, 0x44F),
+        CJK(3, 0x4E00, 0x9FFF),
+        EMOJI(4, 0x1F300, 0x1F5FF);
+
+        final int bytes;
+        final int first;
+        final int last;
+
+        Script(int bytes, int first, int last) {
+            this.bytes = bytes;
+            this.first = first;
+            this.last = last;
+        }
+    }
+
+    private static final String USAGE = """
+            Usage: create_measurements_parallel.sh <number of records to create> [options]
+              --seed=<n>              seed of all random choices (default 1)
+              --out=<file>            output file (default ./measurements.txt)
+              --stations=<n>          number of distinct stations, up to 1,000,000 (default 413)
+              --zipf=<s>              Zipf exponent of the station frequencies, 0 for uniform (default 0)
+              --name-length=<a>-<b>   synthetic names of a to b bytes, uniformly (at most 100)
+              --scripts=<mix>         synthetic names in the given scripts, e.g. latin:80,cyrillic:15,cjk:5
+                                      (latin, latin_extended, greek, cyrillic, cjk, emoji)
+            Station names are taken from data/weather_stations.csv, unless a name option is given or
+            more stations are requested than it has: then names are synthetic, with lengths that are
+            mostly short with long outliers (as in CreateMeasurements3) unless --name-length is given.""";
+
+    public static void main(String[] args) throws Exception {
+        long rows = -1;
+        long seed = 1;
+        int stationCount = 413;
+        double zipf = 0;
+        int[] nameLength = null;
+        double[] scriptWeights = null;
+        Path file = Path.of("./measurements.txt");
+        try {
+            for (String arg : args) {
+                if (arg.startsWith("--seed=")) {
+                    seed = Long.parseLong(value(arg));
+                }
+                else if (arg.startsWith("--stations=")) {
+                    stationCount = Integer.parseInt(value(arg));
+                }
+                else if (arg.startsWith("--out=")) {
+                    file = Path.of(value(arg));
+                }
+                else if (arg.startsWith("--zipf=")) {
+                    zipf = Double.parseDouble(value(arg));
+                }
+                else if (arg.startsWith("--name-length=")) {
+                    String[] range = value(arg).split("-");
+                    nameLength = new int[]{ Integer.parseInt(range[0]), Integer.parseInt(range[range.length - 1]) };
+                }
+                else if (arg.startsWith("--scripts=")) {
+                    scriptWeights = scriptWeights(value(arg));
+                }
+                else {
+                    rows = Long.parseLong(arg);
+                }
+            }
+        }
+        catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            rows = -1;
+        }
+        if (rows < 0 || stationCount < 1 || stationCount > MAX_STATIONS || zipf < 0
+                || (nameLength != null && (nameLength[0] < 1 || nameLength[0] > nameLength[1] || nameLength[1] > MAX_NAME_LENGTH))) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+
+        long start = System.currentTimeMillis();
+        Station[] stations = null;
+        if (nameLength == null && scriptWeights == null) {
+            stations = loadStations(stationCount);
+        }
+        if (stations == null) {
+            stations = syntheticStations(stationCount, new FastRandom(shardSeed(seed, -1)), nameLength,
+                    scriptWeights != null ? scriptWeights : scriptWeights("latin:1"));
+        }
+        StationPicker picker = zipf == 0 ? uniform(stations.length) : zipf(stations.length, zipf);
+        generate(file, rows, seed, stations, picker);
+        System.out.printf("Created file with %,d measurements in %,d ms%n", rows, System.currentTimeMillis() - start);
+    }
+
+    private static String value(String arg) {
+        return arg.substring(arg.indexOf('=') + 1);
+    }
+
+    private static double[] scriptWeights(String mix) {
+        double[] weights = new double[Script.values().length];
+        for (String part : mix.split(",")) {
+            String[] scriptAndWeight = part.split(":");
+            double weight = scriptAndWeight.length > 1 ? Double.parseDouble(scriptAndWeight[1]) : 1;
+            if (weight <= 0) {
+                throw new IllegalArgumentException("Script weights must be positive: " + part);
+            }
+            weights[Script.valueOf(scriptAndWeight[0].strip().toUpperCase()).ordinal()] += weight;
+        }
+        return weights;
+    }
+
+    // Returns null if the file does not have enough distinct stations.
+    private static Station[] loadStations(int count) throws IOException {
+        LinkedHashSet<String> names = new LinkedHashSet<>();
+        List<Station> stations = new ArrayList<>();
+        for (String line : Files.readAllLines(STATIONS_FILE, StandardCharsets.UTF_8)) {
+            if (line.startsWith("#")) {
+                continue;
+            }
+            int delimiter = line.indexOf(';');
+            String name = line.substring(0, delimiter);
+            if (names.add(name)) {
+                double latitude = Double.parseDouble(line.substring(delimiter + 1));
+                // About 27 degrees at the equator, -18 at the poles.
+                int mean = (int) Math.round((27.0 - 0.5 * Math.abs(latitude)) * 10);
+                stations.add(new Station((name + ";").getBytes(StandardCharsets.UTF_8), mean));
+                if (stations.size() == count) {
+                    return stations.toArray(Station[]::new);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Station[] syntheticStations(int count, FastRandom random, int[] nameLength, double[] scriptWeights) {
+        StationPicker script = AliasTable.of(scriptWeights);
+        HashSet<String> names = new HashSet<>();
+        Station[] stations = new Station[count];
+        StringBuilder name = new StringBuilder(MAX_NAME_LENGTH);
+        for (int i = 0, collisions = 0; i < count;) {
+            int length = nameLength != null
+                    ? nameLength[0] + random.nextInt(nameLength[1] - nameLength[0] + 1)
+                    : curveLength(random);
+            syntheticName(name, length, Script.values()[script.next(random)], random);
+            if (names.add(name.toString())) {
+                // Means between -20 and 30 degrees.
+                stations[i++] = new Station((name + ";").getBytes(StandardCharsets.UTF_8), random.nextInt(501) - 200);
+                collisions = 0;
+            }
+            else if (++collisions == 10_000) {
+                throw new IllegalArgumentException("Cannot find " + count + " distinct names of the requested lengths and scripts");
+            }
+        }
+        return stations;
+    }
+
+    // The 7th-order curve of CreateMeasurements3: mostly short names, but with large outliers.
+    private static int curveLength(FastRandom random) {
+        double x = random.nextInt(1 << 30) / (double) (1 << 30);
+        return Math.clamp((int) (4 + 2500 * Math.pow(x - 0.372, 7)), 1, MAX_NAME_LENGTH);
+    }
+
+    /**
+     * A name of exactly {@code length} UTF-8 bytes: characters of the script while they fit, padded with
+     * ASCII letters. The first character is upper case for Latin names.
+     */
+    private static void syntheticName(StringBuilder name, int length, Script script, FastRandom random) {
+        name.setLength(0);
+        int bytes = 0;
+        while (bytes + script.bytes <= length) {
+            name.appendCodePoint(script.first + random.nextInt(script.last - script.first + 1));
+            bytes += script.bytes;
+        }
+        for (; bytes < length; bytes++) {
+            name.append((char) ('a' + random.nextInt(26)));
+        }
+        if (script == Script.LATIN) {
+            name.setCharAt(0, Character.toUpperCase(name.charAt(0)));
+        }
+    }
+
+    /**
+     * Picks the station of each row.
+     */
+    private interface StationPicker {
+        int next(FastRandom random);
+    }
+
+    private static StationPicker uniform(int count) {
+        return random -> random.nextInt(count);
+    }
+
+    // Station i has a frequency proportional to 1 / (i + 1)^s.
+    private static StationPicker zipf(int count, double exponent) {
+        double[] weights = new double[count];
+        for (int i = 0; i < count; i++) {
+            weights[i] = 1 / Math.pow(i + 1, exponent);
+        }
+        return AliasTable.of(weights);
+    }
+
+    /**
+     * Walker's alias method: picks index {@code i} with a probability proportional to
+     * {@code weights[i]} in constant time.
+     */
+    private record AliasTable(int[] thresholds, int[] aliases) implements StationPicker {
+
+        static AliasTable of(double[] weights) {
+            int n = weights.length;
+            double total = 0;
+            for (double weight : weights) {
+                total += weight;
+            }
+            double[] scaled = new double[n];
+            int[] small = new int[n];
+            int[] large = new int[n];
+            int smallCount = 0;
+            int largeCount = 0;
+            for (int i = 0; i < n; i++) {
+                scaled[i] = weights[i] * n / total;
+                if (scaled[i] < 1) {
+                    small[smallCount++] = i;
+                }
+                else {
+                    large[largeCount++] = i;
+                }
+            }
+            int[] thresholds = new int[n];
+            int[] aliases = new int[n];
+            while (smallCount > 0 && largeCount > 0) {
+                int less = small[--smallCount];
+                int more = large[largeCount - 1];
+                thresholds[less] = (int) (scaled[less] * Integer.MAX_VALUE);
+                aliases[less] = more;
+                scaled[more] -= 1 - scaled[less];
+                if (scaled[more] < 1) {
+                    largeCount--;
+                    small[smallCount++] = more;
+                }
+            }
+            // The rest are (up to rounding) exactly full.
+            while (largeCount > 0) {
+                int i = large[--largeCount];
+                thresholds[i] = Integer.MAX_VALUE;
+                aliases[i] = i;
+            }
+            while (smallCount > 0) {
+                int i = small[--smallCount];
+                thresholds[i] = Integer.MAX_VALUE;
+                aliases[i] = i;
+            }
+            return new AliasTable(thresholds, aliases);
+        }
+
+        @Override
+        public int next(FastRandom random) {
+            int i = random.nextInt(thresholds.length);
+            return (random.nextInt() & Integer.MAX_VALUE) < thresholds[i] ? i : aliases[i];
+        }
+    }
+
+    private static void generate(Path file, long rows, long seed, Station[] stations, StationPicker picker) throws IOException {
+        int shards = (int) Math.max(1, (rows + SHARD_ROWS - 1) / SHARD_ROWS);
+        long[] shardRows = new long[shards];
+        for (int shard = 0; shard < shards; shard++) {
+            shardRows[shard] = Math.min(SHARD_ROWS, rows - (long) shard * SHARD_ROWS);
+        }
+
+        long[] offsets = new long[shards + 1];
+        long[] sizes = new long[shards];
+        IntStream.range(0, shards).parallel().forEach(shard -> sizes[shard] = shard(stations, picker, seed, shard, shardRows[shard], null, 0));
+        for (int shard = 0; shard < shards; shard++) {
+            offsets[shard + 1] = offsets[shard] + sizes[shard];
+        }
+
+        try (var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+                Arena arena = Arena.ofShared()) {
+            MemorySegment out = channel.map(FileChannel.MapMode.READ_WRITE, 0, offsets[shards], arena);
+            IntStream.range(0, shards).parallel().forEach(shard -> shard(stations, picker, seed, shard, shardRows[shard], out, offsets[shard]));
+        }
+        LineIndex.of(offsets[shards] / shards, offsets, shardRows).writeFor(file);
+    }
+
+    /**
+     * Generates the rows of one shard, writing them at {@code offset} unless {@code out} is null.
+     *
+     * @return the size of the shard in bytes
+     */
+    private static long shard(Station[] stations, StationPicker picker, long seed, int shard, long rows, MemorySegment out, long offset) {
+        FastRandom random = new FastRandom(shardSeed(seed, shard));
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int pos = 0;
+        long size = 0;
+        for (long row = 0; row < rows; row++) {
+            Station station = stations[picker.next(random)];
+            int temperature = station.meanTemperature() + random.nextInt(201) + random.nextInt(201) + random.nextInt(201) + random.nextInt(201) - 400;
+            temperature = Math.clamp(temperature, -999, 999);
+
+            byte[] name = station.nameAndDelimiter();
+            System.arraycopy(name, 0, buffer, pos, name.length);
+            pos += name.length;
+            if (temperature < 0) {
+                buffer[pos++] = '-';
+                temperature = -temperature;
+            }
+            if (temperature >= 100) {
+                buffer[pos++] = (byte) ('0' + temperature / 100);
+            }
+            buffer[pos++] = (byte) ('0' + temperature / 10 % 10);
+            buffer[pos++] = '.';
+            buffer[pos++] = (byte) ('0' + temperature % 10);
+            buffer[pos++] = '\n';
+
+            if (pos > BUFFER_SIZE - MAX_ROW_LENGTH) {
+                flush(buffer, pos, out, offset + size);
+                size += pos;
+                pos = 0;
+            }
+        }
+        flush(buffer, pos, out, offset + size);
+        return size + pos;
+    }
+
+    private static void flush(byte[] buffer, int length, MemorySegment out, long offset) {
+        if (out != null) {
+            MemorySegment.copy(buffer, 0, out, ValueLayout.JAVA_BYTE, offset, length);
+        }
+    }
+
+    // SplitMix64 of the seed and the shard number, never 0 (FastRandom would only return 0).
+    private static long shardSeed(long seed, int shard) {
+        long z = seed + (shard + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z ^= z >>> 31;
+        return z == 0 ? 1 : z;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import dev.morling.onebrc.engine.StationDictionary;
+
+/**
+ * Offline tool that builds the {@link StationDictionary} of a list of stations, for
+ * {@code CalculateAverage_engine --dictionary=<file>}. The list is any file of {@code name;...}
+ * lines, such as {@code data/weather_stations.csv} (lines starting with {@code #} are skipped) or a
+ * measurements file. The seed search runs on {@code N_THREADS} threads.
+ */
+public class CreateStationDictionary {
+    public static final int N_THREADS = Runtime.getRuntime().availableProcessors();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.out.println("Usage: create_station_dictionary.sh <station list> <dictionary file>");
+            System.exit(1);
+        }
+        long start = System.currentTimeMillis();
+        List<byte[]> names = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(Path.of(args[0]), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    int delimiter = line.indexOf(';');
+                    names.add((delimiter < 0 ? line : line.substring(0, delimiter)).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+        long distinct = names.stream().map(name -> new String(name, StandardCharsets.UTF_8)).distinct().count();
+
+        StationDictionary dictionary = StationDictionary.build(names, N_THREADS);
+        dictionary.write(Path.of(args[1]));
+        System.out.printf("Wrote %,d stations to %s in %,d ms%n", dictionary.size(), args[1], System.currentTimeMillis() - start);
+        if (dictionary.size() < distinct) {
+            System.out.printf("%,d stations share their hash with another one and were left out%n", distinct - dictionary.size());
+        }
+    }
+}
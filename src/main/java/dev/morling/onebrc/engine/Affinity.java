@@ -0,0 +1,110 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+
+/**
+ * Thread CPU affinity through {@code sched_getaffinity}/{@code sched_setaffinity} of the C library,
+ * called with the foreign function API. Masks are {@code cpu_set_t} bit sets (1024 CPUs) as longs.
+ * On platforms without these functions, {@link #available()} is {@code false} and nothing is pinned.
+ */
+public final class Affinity {
+
+    public static final int MAX_CPUS = 1024;
+
+    private static final long MASK_SIZE = MAX_CPUS / 8;
+    private static final MethodHandle GET = downcall("sched_getaffinity");
+    private static final MethodHandle SET = downcall("sched_setaffinity");
+
+    private Affinity() {
+    }
+
+    public static boolean available() {
+        return GET != null && SET != null;
+    }
+
+    /**
+     * Returns the affinity mask of the calling thread, or {@code null} if it is not available.
+     */
+    public static long[] current() {
+        if (!available()) {
+            return null;
+        }
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment mask = arena.allocate(MASK_SIZE);
+            // pid 0 is the calling thread.
+            if ((int) GET.invokeExact(0, MASK_SIZE, mask) != 0) {
+                return null;
+            }
+            return mask.toArray(ValueLayout.JAVA_LONG);
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException("sched_getaffinity failed", e);
+        }
+    }
+
+    /**
+     * Restricts the calling thread to the CPUs of the mask.
+     *
+     * @return {@code false} if the affinity could not be changed
+     */
+    public static boolean set(long[] cpus) {
+        if (!available() || cpus == null) {
+            return false;
+        }
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment mask = arena.allocate(MASK_SIZE);
+            MemorySegment.copy(cpus, 0, mask, ValueLayout.JAVA_LONG, 0, Math.min(cpus.length, (int) (MASK_SIZE / 8)));
+            return (int) SET.invokeExact(0, MASK_SIZE, mask) == 0;
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException("sched_setaffinity failed", e);
+        }
+    }
+
+    public static long[] mask(int[] cpus) {
+        long[] mask = new long[MAX_CPUS / 64];
+        for (int cpu : cpus) {
+            if (cpu < MAX_CPUS) {
+                mask[cpu >>> 6] |= 1L << cpu;
+            }
+        }
+        return mask;
+    }
+
+    public static boolean contains(long[] mask, int cpu) {
+        return cpu < MAX_CPUS && (mask[cpu >>> 6] & (1L << cpu)) != 0;
+    }
+
+    // int f(pid_t pid, size_t cpusetsize, cpu_set_t *mask)
+    private static MethodHandle downcall(String name) {
+        try {
+            Linker linker = Linker.nativeLinker();
+            return linker.defaultLookup().find(name)
+                    .map(symbol -> linker.downcallHandle(symbol, FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG, ValueLayout.ADDRESS)))
+                    .orElse(null);
+        }
+        catch (RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+/**
+ * Min/sum/max/count of the measurements of one station. Temperatures are in tenths of a degree.
+ */
+public class Aggregate {
+
+    public static final int MIN_TEMP = -999;
+    public static final int MAX_TEMP = 999;
+
+    public int min = MAX_TEMP;
+    public int max = MIN_TEMP;
+    public long sum;
+    public long count;
+
+    public final void record(int value) {
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+        sum += value;
+        count++;
+    }
+
+    // Accumulate another result into this one.
+    public void add(Aggregate other) {
+        add(other.min, other.max, other.sum, other.count);
+    }
+
+    public final void add(int otherMin, int otherMax, long otherSum, long otherCount) {
+        if (otherMin < min) {
+            min = otherMin;
+        }
+        if (otherMax > max) {
+            max = otherMax;
+        }
+        sum += otherSum;
+        count += otherCount;
+    }
+
+    public Aggregate copy() {
+        Aggregate copy = new Aggregate();
+        copy.add(this);
+        return copy;
+    }
+
+    public String toString() {
+        return round(((double) min) / 10.0) + "/" + round((((double) sum) / 10.0) / count) + "/" + round(((double) max) / 10.0);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.foreign.Arena;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import jdk.net.ExtendedSocketOptions;
+
+/**
+ * A resident process answering aggregation requests over a Unix domain socket, so that repeated
+ * queries neither pay for JVM startup and JIT warm-up nor for mapping the file again.
+ * <p>
+ * Protocol: the client sends the absolute path of a measurements file on one line, the server
+ * answers with the same line as a one-shot run of the engine and closes the connection. Failures
+ * are answered with a line starting with {@value #ERROR}. Each client is served on a virtual thread,
+ * and has {@link #REQUEST_TIMEOUT} to send its request; concurrent requests share the workers of the
+ * engine. Connection failures, such as a client that went away before the answer, are logged and
+ * only end that connection.
+ * <p>
+ * The mappings of the most recently used files are kept; a file whose size or modification time
+ * changed is mapped again. A mapping is only unmapped once no request uses it anymore.
+ * <p>
+ * Trust model: the server maps and parses any file it can read that a client names, so only the
+ * user running it may send requests. The socket file is made readable and writable by its owner
+ * only, and connections from other users are refused, checked on the peer credentials of each
+ * connection.
+ */
+public final class AggregationServer implements AutoCloseable {
+
+    public static final String ERROR = "ERROR: ";
+    public static final int DEFAULT_CACHED_FILES = 4;
+    public static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFSOCK = 0140000;
+
+    private static final class Mapping {
+
+        final Input input;
+        final long lastModified;
+        // Requests using the mapping, and whether it left the cache; guarded by the cache.
+        int users;
+        boolean evicted;
+
+        Mapping(Input input, long lastModified) {
+            this.input = input;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final Engine engine;
+    private final Map<Path, Mapping> mappings;
+    private final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().name("request-timeouts").factory());
+
+    public AggregationServer(Engine engine, int cachedFiles) {
+        this.engine = engine;
+        this.mappings = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Mapping> eldest) {
+                if (size() > cachedFiles) {
+                    evict(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Serves requests on the given socket until the thread is interrupted. A stale socket file of a
+     * previous server is replaced; any other existing file, or the socket of a running server, is an
+     * error.
+     */
+    public void serve(Path socket) throws IOException {
+        deleteStaleSocket(socket);
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            try {
+                // Also when the server is stopped by a signal.
+                socket.toFile().deleteOnExit();
+                Files.setPosixFilePermissions(socket, PosixFilePermissions.fromString("rw-------"));
+                UserPrincipal owner = Files.getOwner(socket);
+                while (!Thread.currentThread().isInterrupted()) {
+                    SocketChannel client = server.accept();
+                    Thread.ofVirtual().name("request").start(() -> handle(client, owner));
+                }
+            }
+            finally {
+                Files.deleteIfExists(socket);
+            }
+        }
+    }
+
+    private static void deleteStaleSocket(Path socket) throws IOException {
+        if (!Files.exists(socket, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        if (!isSocket(socket)) {
+            throw new IOException("Not a socket, refusing to replace it: " + socket);
+        }
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            throw new IOException("A server is already listening on " + socket);
+        }
+        catch (ConnectException e) {
+            Files.delete(socket);
+        }
+    }
+
+    private static boolean isSocket(Path file) throws IOException {
+        try {
+            return ((int) Files.getAttribute(file, "unix:mode", LinkOption.NOFOLLOW_LINKS) & S_IFMT) == S_IFSOCK;
+        }
+        catch (UnsupportedOperationException e) {
+            // No file type beyond neither a regular file, a directory nor a link.
+            return Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther();
+        }
+    }
+
+    private void handle(SocketChannel client, UserPrincipal owner) {
+        try (client) {
+            UserPrincipal user = client.getOption(ExtendedSocketOptions.SO_PEERCRED).user();
+            if (!user.equals(owner)) {
+                System.err.println("Request refused: connection from user " + user.getName());
+                return;
+            }
+            // The channel has no read timeout, closing it ends a pending read.
+            ScheduledFuture<?> timeout = timeouts.schedule(() -> closeQuietly(client), REQUEST_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+            String request;
+            try {
+                request = new BufferedReader(new InputStreamReader(Channels.newInputStream(client), StandardCharsets.UTF_8)).readLine();
+            }
+            finally {
+                timeout.cancel(false);
+            }
+            OutputStream out = Channels.newOutputStream(client);
+            out.write((answer(request) + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+        catch (IOException e) {
+            System.err.println("Request failed: " + e);
+        }
+    }
+
+    private String answer(String request) {
+        if (request == null || request.isBlank()) {
+            return ERROR + new IllegalArgumentException("Expected the path of a measurements file");
+        }
+        Mapping mapping = null;
+        try {
+            mapping = acquire(Path.of(request.strip()));
+            return engine.aggregate(mapping.input).toString();
+        }
+        catch (IOException | RuntimeException e) {
+            return ERROR + e;
+        }
+        finally {
+            if (mapping != null) {
+                release(mapping);
+            }
+        }
+    }
+
+    private Mapping acquire(Path file) throws IOException {
+        synchronized (mappings) {
+            long lastModified = Files.getLastModifiedTime(file).toMillis();
+            Mapping mapping = mappings.get(file);
+            if (mapping != null && (mapping.lastModified != lastModified || mapping.input.size() != Files.size(file))) {
+                evict(mappings.remove(file));
+                mapping = null;
+            }
+            if (mapping == null) {
+                mapping = new Mapping(Input.map(file, Arena.ofShared()), lastModified);
+                mappings.put(file, mapping);
+            }
+            mapping.users++;
+            return mapping;
+        }
+    }
+
+    private void release(Mapping mapping) {
+        synchronized (mappings) {
+            if (--mapping.users == 0 && mapping.evicted) {
+                mapping.input.close();
+            }
+        }
+    }
+
+    // Called with the cache locked.
+    private static void evict(Mapping mapping) {
+        mapping.evicted = true;
+        if (mapping.users == 0) {
+            mapping.input.close();
+        }
+    }
+
+    private static void closeQuietly(SocketChannel client) {
+        try {
+            client.close();
+        }
+        catch (IOException e) {
+            // Closed anyway.
+        }
+    }
+
+    /**
+     * Sends one request to a server and returns its answer.
+     */
+    public static String request(Path socket, Path file) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            channel.write(StandardCharsets.UTF_8.encode(file.toAbsolutePath() + "\n"));
+            channel.shutdownOutput();
+            return new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8)).readLine();
+        }
+    }
+
+    @Override
+    public void close() {
+        timeouts.shutdownNow();
+        synchronized (mappings) {
+            mappings.values().forEach(AggregationServer::evict);
+            mappings.clear();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Per-worker table of station aggregates, keyed by the raw UTF-8 name bytes in the input.
+ * <p>
+ * Names are passed as the words produced by {@link SwarLineParser}: a name of {@code n} bytes is
+ * read as little-endian longs, and the last (partial) word is masked so that it ends with the
+ * {@code ';'} delimiter in its most significant used byte. The hash is the xor of all such words.
+ * The two {@code tryRecord} methods are the allocation-free fast paths for names of up to 7 and up
+ * to 15 bytes; they may return {@code false} for an existing name, in which case the parser falls
+ * back to {@link #record(long, int, long, int)}.
+ */
+public interface AggregationTable {
+
+    boolean tryRecord(long hash, long lastWord, int value);
+
+    boolean tryRecord(long hash, long lastWord, long secondLastWord, int value);
+
+    /**
+     * Records a measurement for the name stored at {@code [nameAddress, nameAddress + nameLength)}.
+     * The byte at {@code nameAddress + nameLength} must be the {@code ';'} delimiter.
+     */
+    void record(long nameAddress, int nameLength, long hash, int value);
+
+    /**
+     * Passes the UTF-8 name and the aggregate of every station in this table to the action.
+     */
+    void forEach(BiConsumer<byte[], Aggregate> action);
+}
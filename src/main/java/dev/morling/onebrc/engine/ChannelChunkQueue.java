@@ -0,0 +1,117 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Streams the input from a channel (e.g. a pipe) instead of mapping it. Each worker owns one slot
+ * of a ring of large off-heap buffers: when it asks for more work, its previous chunk is done, so
+ * its buffer is refilled from the channel and handed back as the next chunk. Reads are serialized,
+ * but happen while the other workers are parsing.
+ * <p>
+ * A block ends after its last complete line; the partial line that follows is carried over to the
+ * start of the next block. A missing newline at the end of the input is added.
+ */
+public final class ChannelChunkQueue implements Chunker.ChunkQueue, AutoCloseable {
+
+    public static final int DEFAULT_BLOCK_SIZE = 4 * 1024 * 1024;
+
+    private final ReadableByteChannel channel;
+    private final int blockSize;
+    private final Arena arena;
+    private final ByteBuffer[] buffers;
+    private final long[] addresses;
+    private final byte[] carry;
+    private int carryLength;
+    private boolean eof;
+
+    public ChannelChunkQueue(ReadableByteChannel channel, int workers) {
+        this(channel, workers, DEFAULT_BLOCK_SIZE);
+    }
+
+    public ChannelChunkQueue(ReadableByteChannel channel, int workers, int blockSize) {
+        this.channel = channel;
+        this.blockSize = blockSize;
+        this.arena = Arena.ofShared();
+        this.buffers = new ByteBuffer[workers];
+        this.addresses = new long[workers];
+        for (int i = 0; i < workers; i++) {
+            // Room for the newline added at the end of the input and for the parser to read past it.
+            MemorySegment segment = arena.allocate(blockSize + 1 + LineParser.OVERREAD, Long.BYTES);
+            buffers[i] = segment.asByteBuffer();
+            addresses[i] = segment.address();
+        }
+        this.carry = new byte[blockSize];
+    }
+
+    @Override
+    public synchronized boolean next(int worker, Chunk chunk) {
+        if (eof) {
+            return false;
+        }
+        ByteBuffer buffer = buffers[worker];
+        buffer.clear().limit(blockSize);
+        buffer.put(carry, 0, carryLength);
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    eof = true;
+                    break;
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        int filled = buffer.position();
+        int end;
+        if (eof) {
+            end = filled;
+            if (end > 0 && buffer.get(end - 1) != '\n') {
+                buffer.limit(end + 1).put(end++, (byte) '\n');
+            }
+            carryLength = 0;
+        }
+        else {
+            end = filled;
+            while (end > 0 && buffer.get(end - 1) != '\n') {
+                end--;
+            }
+            if (end == 0) {
+                throw new IllegalStateException("No line end within a block of " + blockSize + " bytes");
+            }
+            carryLength = filled - end;
+            buffer.get(end, carry, 0, carryLength);
+        }
+        if (end == 0) {
+            return false;
+        }
+        chunk.set(addresses[worker], addresses[worker] + end);
+        return true;
+    }
+
+    @Override
+    public void close() {
+        arena.close();
+    }
+}
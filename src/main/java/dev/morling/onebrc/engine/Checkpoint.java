@@ -0,0 +1,190 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The state of an append-only measurements file after a run: the aggregates of all lines in
+ * {@code [0, offset)}, so that the next run only needs to parse {@code [offset, size)}.
+ * <p>
+ * To detect a file that was replaced or rewritten rather than appended to, the checkpoint also
+ * keeps the identity of the file (its {@link BasicFileAttributes#fileKey() file key}, device and
+ * inode on Unix, where available) and a fingerprint of the first bytes of the file and of the bytes
+ * just before {@code offset}; if any of them differs, the checkpoint is discarded and the file is
+ * processed from the start. The creation time is not used: where the file system does not record
+ * it, the JDK reports the modification time instead, which every append changes.
+ * <p>
+ * Binary format (big-endian): magic, version, offset, fingerprint, file key (modified UTF-8, empty
+ * if unknown), station count, then per station the UTF-8 name (length as unsigned short), min and
+ * max (short), sum and count (long). Checkpoints of version 1, which have no file key, never match.
+ */
+public final class Checkpoint {
+
+    private static final int MAGIC = 0x31425243; // "1BRC"
+    private static final int VERSION = 2;
+    private static final int FINGERPRINT_BYTES = 64;
+
+    private final long offset;
+    private final long fingerprint;
+    // Null for checkpoints that cannot match any file.
+    private final String fileKey;
+    private final SortedMap<String, Aggregate> results;
+
+    private Checkpoint(long offset, long fingerprint, String fileKey, SortedMap<String, Aggregate> results) {
+        this.offset = offset;
+        this.fingerprint = fingerprint;
+        this.fileKey = fileKey;
+        this.results = results;
+    }
+
+    public static Checkpoint empty() {
+        return new Checkpoint(0, 0, null, new TreeMap<>());
+    }
+
+    /**
+     * Creates the checkpoint of the given results, which cover the input up to {@code offset}.
+     */
+    public static Checkpoint of(Input input, long offset, SortedMap<String, Aggregate> results) {
+        return new Checkpoint(offset, fingerprint(input, offset), fileKey(input), results);
+    }
+
+    public static Checkpoint read(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return empty();
+        }
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a checkpoint file: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION && version != 1) {
+                throw new IOException("Unsupported checkpoint version " + version + ": " + file);
+            }
+            long offset = in.readLong();
+            long fingerprint = in.readLong();
+            String fileKey = version == 1 ? null : in.readUTF();
+            int stations = in.readInt();
+            SortedMap<String, Aggregate> results = new TreeMap<>();
+            for (int i = 0; i < stations; i++) {
+                byte[] name = new byte[in.readUnsignedShort()];
+                in.readFully(name);
+                Aggregate aggregate = new Aggregate();
+                aggregate.add(in.readShort(), in.readShort(), in.readLong(), in.readLong());
+                results.put(new String(name, StandardCharsets.UTF_8), aggregate);
+            }
+            return new Checkpoint(offset, fingerprint, fileKey, results);
+        }
+    }
+
+    /**
+     * Writes the checkpoint to a temporary file first, then moves it in place, so that an
+     * interrupted run never leaves a truncated checkpoint behind.
+     */
+    public void write(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(offset);
+            out.writeLong(fingerprint);
+            out.writeUTF(fileKey != null ? fileKey : "");
+            out.writeInt(results.size());
+            for (Map.Entry<String, Aggregate> entry : results.entrySet()) {
+                byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                Aggregate aggregate = entry.getValue();
+                out.writeShort(name.length);
+                out.write(name);
+                out.writeShort(aggregate.min);
+                out.writeShort(aggregate.max);
+                out.writeLong(aggregate.sum);
+                out.writeLong(aggregate.count);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns whether this checkpoint describes a prefix of the given input, which must be the same
+     * file as the one the checkpoint was made of.
+     */
+    public boolean matches(Input input) {
+        return offset <= input.size() && Objects.equals(fileKey, fileKey(input)) && fingerprint == fingerprint(input, offset);
+    }
+
+    public long offset() {
+        return offset;
+    }
+
+    public SortedMap<String, Aggregate> results() {
+        return results;
+    }
+
+    /**
+     * Adds the checkpointed aggregates into the results of the tail of the input.
+     */
+    public SortedMap<String, Aggregate> mergeInto(SortedMap<String, Aggregate> tail) {
+        for (Map.Entry<String, Aggregate> entry : results.entrySet()) {
+            Aggregate current = tail.get(entry.getKey());
+            if (current == null) {
+                tail.put(entry.getKey(), entry.getValue().copy());
+            }
+            else {
+                current.add(entry.getValue());
+            }
+        }
+        return tail;
+    }
+
+    // FNV-1a of the first bytes of the input and of the bytes preceding the offset.
+    private static long fingerprint(Input input, long offset) {
+        long hash = 0xcbf29ce484222325L;
+        for (long i = 0; i < Math.min(offset, FINGERPRINT_BYTES); i++) {
+            hash = (hash ^ (Memory.getByte(input.address() + i) & 0xFF)) * 0x100000001b3L;
+        }
+        for (long i = Math.max(0, offset - FINGERPRINT_BYTES); i < offset; i++) {
+            hash = (hash ^ (Memory.getByte(input.address() + i) & 0xFF)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // The file key of the input's file, empty if the file system has none.
+    private static String fileKey(Input input) {
+        if (input.path() == null) {
+            return "";
+        }
+        try {
+            Object key = Files.readAttributes(input.path(), BasicFileAttributes.class).fileKey();
+            return key != null ? key.toString() : "";
+        }
+        catch (IOException e) {
+            return "";
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+/**
+ * A line-aligned range of memory {@code [start, end)}: {@code start} is the first byte of a line
+ * and {@code end} is either the first byte of a line or the end of the input. Mutable so that
+ * workers can reuse a single instance while pulling work.
+ */
+public final class Chunk {
+
+    public long start;
+    public long end;
+
+    public void set(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long size() {
+        return end - start;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Splits an input into line-aligned chunks and hands them out to the workers of one run.
+ */
+public interface Chunker {
+
+    ChunkQueue split(Input input, int workers);
+
+    /**
+     * The work of a single run. Workers call {@link #next} until it returns {@code false}.
+     */
+    interface ChunkQueue {
+
+        /**
+         * Stores the next chunk for the given worker (0-based) into {@code chunk}.
+         *
+         * @return {@code false} if there is no more work for that worker
+         */
+        boolean next(int worker, Chunk chunk);
+
+        /**
+         * Called once by each worker, on its thread, before it allocates its table and asks for its
+         * first chunk, so that the queue can prepare the thread, such as pinning it.
+         */
+        default void start(int worker) {
+        }
+    }
+
+    /**
+     * Chains the queues of several inputs: each worker takes its chunks from the first queue until
+     * that has none left for it, then moves on to the next one. Workers are started by the first
+     * queue.
+     */
+    static ChunkQueue concat(List<ChunkQueue> queues, int workers) {
+        int[] current = new int[workers];
+        return new ChunkQueue() {
+            @Override
+            public void start(int worker) {
+                if (!queues.isEmpty()) {
+                    queues.get(0).start(worker);
+                }
+            }
+
+            @Override
+            public boolean next(int worker, Chunk chunk) {
+                for (; current[worker] < queues.size(); current[worker]++) {
+                    if (queues.get(current[worker]).next(worker, chunk)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * The whole input as one chunk, for the first worker that asks for it.
+     */
+    static ChunkQueue single(Input input) {
+        AtomicBoolean taken = new AtomicBoolean(input.size() == 0);
+        return (worker, chunk) -> {
+            if (taken.getAndSet(true)) {
+                return false;
+            }
+            // Workers ask the queue again after each chunk, so a copied input stays reachable while it is parsed.
+            chunk.set(input.address(), input.end());
+            return true;
+        };
+    }
+
+    /**
+     * Returns the address of the first line starting at or after {@code address}, or {@code end}.
+     */
+    static long alignToLine(long address, long start, long end) {
+        if (address <= start) {
+            return start;
+        }
+        if (address >= end) {
+            return end;
+        }
+        // The line starts after the previous newline, so check the byte before the proposed start.
+        address--;
+        while (address < end && Memory.getByte(address++) != '\n')
+            ;
+        return address;
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * A measurements file converted to columns, for repeated queries without re-parsing the text:
+ * <ul>
+ * <li>a header: magic, version, row count, station count, dictionary offset (little-endian)</li>
+ * <li>the station column: one unsigned {@code short} station id per row</li>
+ * <li>the temperature column: one {@code short} per row, in tenths of a degree</li>
+ * <li>the dictionary: the UTF-8 station names in id order (length as unsigned short, then the bytes),
+ * ids are assigned in name order</li>
+ * </ul>
+ * Both columns are 64-byte aligned and memory-mappable; aggregating is a plain scan over them.
+ * The header and the dictionary are validated against the size of the file when it is opened, the
+ * station ids while scanning.
+ */
+public final class ColumnarFile implements AutoCloseable {
+
+    public static final int MAX_STATIONS = 1 << 16;
+
+    private static final int MAGIC = 0x4C4F4331; // "1COL"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private final Arena arena;
+    private final long rows;
+    private final String[] names;
+    private final long stations;
+    private final long temperatures;
+
+    private ColumnarFile(Arena arena, long rows, String[] names, long stations, long temperatures) {
+        this.arena = arena;
+        this.rows = rows;
+        this.names = names;
+        this.stations = stations;
+        this.temperatures = temperatures;
+    }
+
+    public static ColumnarFile open(Path file) throws IOException {
+        Arena arena = Arena.ofShared();
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MemorySegment data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+            if (data.byteSize() < HEADER_SIZE || data.get(INT, 0) != MAGIC) {
+                throw new IOException("Not a columnar measurements file: " + file);
+            }
+            int version = data.get(INT, 4);
+            if (version != VERSION) {
+                throw new IOException("Unsupported columnar file version " + version + ": " + file);
+            }
+            long size = data.byteSize();
+            long rows = data.get(LONG, 8);
+            int count = data.get(INT, 16);
+            long offset = data.get(LONG, 24);
+            if (rows < 0 || rows > (size - HEADER_SIZE) / 4 || HEADER_SIZE + 2 * columnSize(rows) > offset || offset > size) {
+                throw new IOException("Corrupt columnar file, " + rows + " rows and dictionary at " + offset + " in " + size + " bytes: " + file);
+            }
+            if (count < 0 || count > MAX_STATIONS) {
+                throw new IOException("Corrupt columnar file, " + count + " stations: " + file);
+            }
+            String[] names = new String[count];
+            for (int i = 0; i < names.length; i++) {
+                if (offset + 2 > size) {
+                    throw new IOException("Corrupt columnar file, truncated dictionary: " + file);
+                }
+                int length = Short.toUnsignedInt(data.get(ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN), offset));
+                if (offset + 2 + length > size) {
+                    throw new IOException("Corrupt columnar file, truncated dictionary: " + file);
+                }
+                names[i] = new String(data.asSlice(offset + 2, length).toArray(ValueLayout.JAVA_BYTE), StandardCharsets.UTF_8);
+                offset += 2 + length;
+            }
+            long stations = data.address() + HEADER_SIZE;
+            return new ColumnarFile(arena, rows, names, stations, stations + columnSize(rows));
+        }
+        catch (IOException | RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    public long rows() {
+        return rows;
+    }
+
+    public int stations() {
+        return names.length;
+    }
+
+    /**
+     * Aggregates all rows, splitting the columns evenly across the workers.
+     */
+    public SortedMap<String, Aggregate> aggregate(int workers) {
+        int n = names.length;
+        List<long[]> partials = IntStream.range(0, workers).parallel().mapToObj(worker -> {
+            long from = rows * worker / workers;
+            long to = rows * (worker + 1) / workers;
+            // min, max, sum, count per station, side by side.
+            long[] stats = new long[n * 4];
+            for (int i = 0; i < n; i++) {
+                stats[i * 4] = Aggregate.MAX_TEMP;
+                stats[i * 4 + 1] = Aggregate.MIN_TEMP;
+            }
+            scan(stations, temperatures, from, to, stats, n);
+            return stats;
+        }).toList();
+
+        SortedMap<String, Aggregate> result = new TreeMap<>();
+        for (int i = 0; i < n; i++) {
+            Aggregate aggregate = new Aggregate();
+            for (long[] stats : partials) {
+                aggregate.add((int) stats[i * 4], (int) stats[i * 4 + 1], stats[i * 4 + 2], stats[i * 4 + 3]);
+            }
+            if (aggregate.count > 0) {
+                result.put(names[i], aggregate);
+            }
+        }
+        return result;
+    }
+
+    private static void scan(long stations, long temperatures, long from, long to, long[] stats, int n) {
+        for (long row = from; row < to; row++) {
+            int id = Memory.getShort(stations + (row << 1)) & 0xFFFF;
+            if (id >= n) {
+                throw new IllegalStateException("Corrupt columnar file, station id " + id + " of " + n + " at row " + row);
+            }
+            id <<= 2;
+            long temperature = Memory.getShort(temperatures + (row << 1));
+            stats[id] = Math.min(stats[id], temperature);
+            stats[id + 1] = Math.max(stats[id + 1], temperature);
+            stats[id + 2] += temperature;
+            stats[id + 3]++;
+        }
+    }
+
+    @Override
+    public void close() {
+        arena.close();
+    }
+
+    /**
+     * Converts a text measurements file. The rows are split into the blocks of its {@link LineIndex}
+     * (built on the fly if there is no sidecar), which gives the row number at which each block starts,
+     * so that the workers can parse blocks in any order and write their rows in place. Each worker
+     * numbers the stations in the order it sees them; once all blocks are done, these ids are
+     * rewritten to the global, name-ordered ids.
+     *
+     * @return the number of rows
+     */
+    public static long convert(Path text, Path columnar, LineParser parser, int workers) throws IOException {
+        try (Input input = Input.map(text)) {
+            LineIndex index = LineIndex.readFor(text);
+            if (index == null) {
+                index = LineIndex.build(input, LineIndex.DEFAULT_STRIDE);
+            }
+            return convert(input, index, columnar, parser, workers);
+        }
+    }
+
+    private static long convert(Input input, LineIndex index, Path columnar, LineParser parser, int workers) throws IOException {
+        long rows = index.rows();
+        long[] firstRows = new long[index.blocks()];
+        for (int block = 1; block < firstRows.length; block++) {
+            firstRows[block] = firstRows[block - 1] + index.rows(block - 1);
+        }
+
+        try (var channel = FileChannel.open(columnar, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+                Arena arena = Arena.ofShared()) {
+            long dictionaryOffset = HEADER_SIZE + 2 * columnSize(rows);
+            MemorySegment data = channel.map(FileChannel.MapMode.READ_WRITE, 0, dictionaryOffset, arena);
+            long stations = data.address() + HEADER_SIZE;
+            long temperatures = stations + columnSize(rows);
+
+            // Parse, blocks are claimed dynamically. The lines near the end of the input are parsed from a
+            // padded copy, in order, so that the rows of the block stay in place (see Input).
+            long tail = input.tailOffset();
+            AtomicInteger nextBlock = new AtomicInteger();
+            int[] owners = new int[index.blocks()];
+            List<ColumnTable> tables = IntStream.range(0, workers).parallel().mapToObj(worker -> {
+                ColumnTable table = new ColumnTable();
+                for (int block; (block = nextBlock.getAndIncrement()) < owners.length;) {
+                    owners[block] = worker;
+                    table.stations = stations + (firstRows[block] << 1);
+                    table.temperatures = temperatures + (firstRows[block] << 1);
+                    long from = index.offset(block);
+                    long to = index.offset(block + 1);
+                    long inPlace = Math.clamp(tail, from, to);
+                    if (from < inPlace) {
+                        parser.parse(input.address() + from, input.address() + inPlace, table);
+                    }
+                    if (inPlace < to) {
+                        Input copy = input.slice(inPlace, to - inPlace).paddedCopy(0);
+                        parser.parse(copy.address(), copy.end(), table);
+                        Reference.reachabilityFence(copy);
+                    }
+                }
+                return table;
+            }).toList();
+
+            // Global dictionary in name order, and the translation of each worker's ids.
+            TreeMap<String, Integer> dictionary = new TreeMap<>();
+            for (ColumnTable table : tables) {
+                table.forEach((name, aggregate) -> dictionary.put(new String(name, StandardCharsets.UTF_8), 0));
+            }
+            if (dictionary.size() > MAX_STATIONS) {
+                throw new IllegalStateException("Too many stations for 16 bit ids: " + dictionary.size());
+            }
+            List<String> names = new ArrayList<>(dictionary.keySet());
+            for (int i = 0; i < names.size(); i++) {
+                dictionary.put(names.get(i), i);
+            }
+            List<short[]> translations = new ArrayList<>();
+            for (ColumnTable table : tables) {
+                short[] translation = new short[table.dictionary.size()];
+                table.forEachId((id, name) -> translation[id] = (short) (int) dictionary.get(new String(name, StandardCharsets.UTF_8)));
+                translations.add(translation);
+            }
+            IntStream.range(0, owners.length).parallel().forEach(block -> {
+                short[] translation = translations.get(owners[block]);
+                long end = stations + ((firstRows[block] + index.rows(block)) << 1);
+                for (long address = stations + (firstRows[block] << 1); address < end; address += 2) {
+                    Memory.putShort(address, translation[Memory.getShort(address) & 0xFFFF]);
+                }
+            });
+
+            data.set(INT, 0, MAGIC);
+            data.set(INT, 4, VERSION);
+            data.set(LONG, 8, rows);
+            data.set(INT, 16, names.size());
+            data.set(LONG, 24, dictionaryOffset);
+            data.force();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (String name : names) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                out.write(bytes.length & 0xFF);
+                out.write(bytes.length >>> 8);
+                out.write(bytes);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+            for (long position = dictionaryOffset; buffer.hasRemaining();) {
+                position += channel.write(buffer, position);
+            }
+        }
+        return rows;
+    }
+
+    // Size of a column of shorts, rounded up to keep the next section 64-byte aligned.
+    private static long columnSize(long rows) {
+        return (rows * 2 + 63) & ~63L;
+    }
+
+    /**
+     * Numbers the stations of one worker and writes each row to the columns at the current cursors
+     * instead of aggregating it.
+     */
+    private static final class ColumnTable implements AggregationTable {
+
+        final ResultTable dictionary = new ResultTable(2 * MAX_STATIONS);
+        long stations;
+        long temperatures;
+
+        @Override
+        public boolean tryRecord(long hash, long lastWord, int value) {
+            ResultTable.Entry entry = dictionary.find(hash, lastWord);
+            if (entry == null) {
+                return false;
+            }
+            append(entry.id, value);
+            return true;
+        }
+
+        @Override
+        public boolean tryRecord(long hash, long lastWord, long secondLastWord, int value) {
+            ResultTable.Entry entry = dictionary.find(hash, lastWord, secondLastWord);
+            if (entry == null) {
+                return false;
+            }
+            append(entry.id, value);
+            return true;
+        }
+
+        @Override
+        public void record(long nameAddress, int nameLength, long hash, int value) {
+            int id = dictionary.findOrInsert(nameAddress, nameLength, hash).id;
+            // Checked on insert: the dictionary has room for twice as many, so it never fills up.
+            if (id >= MAX_STATIONS) {
+                throw new IllegalStateException("Too many stations for 16 bit ids: more than " + MAX_STATIONS);
+            }
+            append(id, value);
+        }
+
+        private void append(int id, int value) {
+            Memory.putShort(stations, (short) id);
+            Memory.putShort(temperatures, (short) value);
+            stations += 2;
+            temperatures += 2;
+        }
+
+        @Override
+        public void forEach(BiConsumer<byte[], Aggregate> action) {
+            dictionary.forEach(action);
+        }
+
+        void forEachId(IdConsumer action) {
+            dictionary.forEach((name, aggregate) -> action.accept(((ResultTable.Entry) aggregate).id, name));
+        }
+    }
+
+    private interface IdConsumer {
+        void accept(int id, byte[] name);
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * The mmap, segment, parse, aggregate and merge pipeline shared by the fast solutions, with each
+ * stage pluggable:
+ * <ul>
+ * <li>{@link Chunker}: splits the mapped input into line-aligned chunks and assigns them to workers</li>
+ * <li>{@link LineParser}: the hot loop, parses the lines of a chunk</li>
+ * <li>{@link AggregationTable}: per-worker table the parser records into</li>
+ * <li>{@link Merger}: combines the tables into the sorted result</li>
+ * </ul>
+ * The default configuration is the one of {@code CalculateAverage_thomaswue}, except for the
+ * scheduling: chunks are handed out by a {@link LazyShardChunker}, with boundaries from the
+ * {@link LineIndex} if there is one, rather than as one static segment per worker, and for the table: a {@link StationTable}, which
+ * grows with the number of stations, rather than the fixed-capacity {@link ResultTable}.
+ */
+public final class Engine {
+
+    private final Chunker chunker;
+    private final LineParser parser;
+    private final Supplier<? extends AggregationTable> tables;
+    private final Merger merger;
+    private final int workers;
+
+    public Engine(Chunker chunker, LineParser parser, Supplier<? extends AggregationTable> tables, Merger merger, int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("At least one worker is required: " + workers);
+        }
+        this.chunker = chunker;
+        this.parser = parser;
+        this.tables = tables;
+        this.merger = merger;
+        this.workers = workers;
+    }
+
+    public static Engine defaults() {
+        return new Engine(new IndexedChunker(new LazyShardChunker()), new SwarLineParser(), StationTable::new, new TreeMapMerger(), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * The default pipeline with {@link HistogramTable}s, so that the results are {@link Histogram}s
+     * which also print the median, 90th and 99th percentiles.
+     */
+    public static Engine percentiles() {
+        return new Engine(new IndexedChunker(new LazyShardChunker()), new SwarLineParser(), HistogramTable::new, new TreeMapMerger(), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * The default pipeline with one {@link SharedStationTable} for all workers instead of a table
+     * per worker, for inputs with many stations.
+     */
+    public static Engine sharedTable() {
+        SharedStationTable shared = new SharedStationTable();
+        return new Engine(new IndexedChunker(new LazyShardChunker()), new SwarLineParser(), shared::newStripe, shared, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * The default pipeline with {@link PerfectHashTable}s over a dictionary of the expected
+     * stations, built offline by {@code CreateStationDictionary}.
+     */
+    public static Engine perfectHash(StationDictionary dictionary) {
+        return new Engine(new IndexedChunker(new LazyShardChunker()), new SwarLineParser(), () -> new PerfectHashTable(dictionary), new TreeMapMerger(),
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * This pipeline with another parse kernel, such as the one picked by
+     * {@link KernelDispatcher#calibrate}.
+     */
+    public Engine withParser(LineParser parser) {
+        return new Engine(chunker, parser, tables, merger, workers);
+    }
+
+    /**
+     * This pipeline made NUMA-aware for the nodes of the machine: the input is split into one
+     * contiguous range per node, whose workers are pinned to that node ({@link NumaChunker}), and
+     * the tables are merged per node before the global merge ({@link NumaMerger}). On a single node,
+     * this engine is returned unchanged.
+     */
+    public Engine numaAware() {
+        return numaAware(NumaTopology.detect());
+    }
+
+    public Engine numaAware(NumaTopology topology) {
+        if (topology.nodes() == 1) {
+            return this;
+        }
+        return new Engine(new NumaChunker(topology, chunker), parser, tables, new NumaMerger(topology, merger), workers);
+    }
+
+    public SortedMap<String, Aggregate> aggregate(Path file) throws IOException {
+        try (Input input = Input.map(file)) {
+            return aggregate(input);
+        }
+    }
+
+    public SortedMap<String, Aggregate> aggregate(Input input) {
+        return merger.merge(process(split(input)));
+    }
+
+    /**
+     * Aggregates several files into one result. The chunks of all files go through the same workers
+     * (each worker moves on to the next file once it has no more work in the current one), which
+     * record into the same tables, so that small files neither leave workers idle nor cost new
+     * tables. The files are mapped in an arena of this call, and unmapped once merged rather than
+     * left mapped until exit.
+     */
+    public SortedMap<String, Aggregate> aggregate(List<Path> files) throws IOException {
+        try (Arena arena = Arena.ofShared()) {
+            List<Chunker.ChunkQueue> queues = new ArrayList<>();
+            for (Path file : files) {
+                Input input = Input.map(file, arena);
+                if (input.size() > 0) {
+                    queues.add(split(input));
+                }
+            }
+            return merger.merge(process(Chunker.concat(queues, workers)));
+        }
+    }
+
+    /**
+     * Aggregates files mapped range by range by a {@link MappedRangeQueue}, so that each worker
+     * unmaps the ranges it is done with while the others are still parsing. This replaces running
+     * the whole-file mapping in a subprocess that can exit before the kernel has torn it down. The
+     * chunker of this engine is not used: the ranges are claimed lazily from one pool, and cut at the
+     * offsets of the {@link LineIndex} if there is one.
+     */
+    public SortedMap<String, Aggregate> aggregateInRanges(List<Path> files) throws IOException {
+        return merger.merge(process(rangeQueue(files)));
+    }
+
+    /**
+     * {@link #aggregateInRanges} with the tables merged into {@link SortedResults} rather than by
+     * the merger of this engine, for a {@link ResultWriter}.
+     */
+    public SortedResults sortedInRanges(List<Path> files) throws IOException {
+        return SortedResults.merge(process(rangeQueue(files)));
+    }
+
+    private Chunker.ChunkQueue rangeQueue(List<Path> files) throws IOException {
+        List<Chunker.ChunkQueue> queues = new ArrayList<>();
+        for (Path file : files) {
+            queues.add(new MappedRangeQueue(file, workers));
+        }
+        return Chunker.concat(queues, workers);
+    }
+
+    /**
+     * Incremental mode for append-only files: only the part of the file appended since the last run,
+     * as recorded in the checkpoint file, is parsed and merged with the checkpointed results. The
+     * checkpoint is then advanced to the last complete line, so that a line still being written is
+     * picked up by the next run.
+     */
+    public SortedMap<String, Aggregate> aggregate(Path file, Path checkpointFile) throws IOException {
+        Checkpoint checkpoint = Checkpoint.read(checkpointFile);
+        try (Input input = Input.map(file)) {
+            if (!checkpoint.matches(input)) {
+                checkpoint = Checkpoint.empty();
+            }
+            long start = checkpoint.offset();
+            long end = start + lastLineEnd(input.slice(start, input.size() - start));
+            SortedMap<String, Aggregate> results = checkpoint.mergeInto(aggregate(input.slice(start, end - start)));
+            Checkpoint.of(input, end, results).write(checkpointFile);
+            return results;
+        }
+    }
+
+    // Streaming mode for inputs that cannot be mapped, such as pipes.
+    public SortedMap<String, Aggregate> aggregate(ReadableByteChannel channel) {
+        try (ChannelChunkQueue queue = new ChannelChunkQueue(channel, workers)) {
+            return merger.merge(process(queue));
+        }
+    }
+
+    // The chunks of the input: its last lines are parsed from a padded copy (see Input), the rest is split by the chunker.
+    private Chunker.ChunkQueue split(Input input) {
+        long tail = input.tailOffset();
+        List<Chunker.ChunkQueue> queues = new ArrayList<>();
+        if (tail > 0) {
+            queues.add(chunker.split(input.slice(0, tail), workers));
+        }
+        queues.add(Chunker.single(input.paddedCopy(tail)));
+        return Chunker.concat(queues, workers);
+    }
+
+    // Returns the size of the input up to and including its last newline.
+    private static long lastLineEnd(Input input) {
+        long end = input.end();
+        while (end > input.address() && Memory.getByte(end - 1) != '\n') {
+            end--;
+        }
+        return end - input.address();
+    }
+
+    // Parallel processing of chunks, one table per worker.
+    public List<AggregationTable> process(Chunker.ChunkQueue queue) {
+        return IntStream.range(0, workers).parallel().mapToObj(worker -> {
+            queue.start(worker);
+            AggregationTable table = tables.get();
+            Chunk chunk = new Chunk();
+            while (queue.next(worker, chunk)) {
+                parser.parse(chunk.start, chunk.end, table);
+            }
+            return table;
+        }).toList();
+    }
+}
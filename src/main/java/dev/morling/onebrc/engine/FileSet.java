@@ -0,0 +1,88 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Resolves the input arguments of a multi-file run to the list of measurements files.
+ */
+public final class FileSet {
+
+    private static final String GLOB_CHARACTERS = "*?[{";
+
+    private FileSet() {
+    }
+
+    /**
+     * Resolves each argument, in order:
+     * <ul>
+     * <li>a directory stands for the {@code *.txt} files directly in it</li>
+     * <li>an argument with glob characters ({@code * ? [ {}) is matched against the files below the
+     * longest leading part of it without any, e.g. {@code data/measurements-2024-*.txt}</li>
+     * <li>anything else is a file</li>
+     * </ul>
+     * The files of a directory or glob are sorted by path.
+     */
+    public static List<Path> resolve(List<String> arguments) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (String argument : arguments) {
+            Path path = Path.of(argument);
+            if (isGlob(argument)) {
+                files.addAll(glob(argument));
+            }
+            else if (Files.isDirectory(path)) {
+                files.addAll(glob(path.resolve("*.txt").toString()));
+            }
+            else {
+                files.add(path);
+            }
+        }
+        return files;
+    }
+
+    private static boolean isGlob(String argument) {
+        return argument.chars().anyMatch(c -> GLOB_CHARACTERS.indexOf(c) >= 0);
+    }
+
+    private static List<Path> glob(String pattern) throws IOException {
+        Path path = Path.of(pattern);
+        Path base = path.isAbsolute() ? path.getRoot() : Path.of("");
+        int depth = 0;
+        for (Path name : path) {
+            if (depth > 0 || isGlob(name.toString())) {
+                depth++;
+            }
+            else {
+                base = base.resolve(name);
+            }
+        }
+        if (!Files.isDirectory(base)) {
+            return List.of();
+        }
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + path);
+        try (Stream<Path> candidates = Files.walk(base, depth)) {
+            return candidates.filter(candidate -> matcher.matches(candidate) && Files.isRegularFile(candidate)).sorted().toList();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Experimental parser that runs one line per SIMD lane, rather than vectorising within a line as
+ * merykitty's {@code iterate} does: the chunk is split into one line-aligned range per lane of a
+ * {@link LongVector}, and every step loads the next name word of each range into its lane. The
+ * delimiter search of {@link SwarLineParser}, the name hash and the temperature conversion are
+ * then computed for all lanes at once, and the lanes that completed a name record it into the table,
+ * which stays scalar.
+ * <p>
+ * The Vector API has no gather from arbitrary native addresses, so the words of the lanes are
+ * loaded with scalar reads into an array and then loaded from there. Lanes move through their
+ * ranges independently: a lane with a long name takes several steps while the others complete
+ * lines. Once any lane reaches the end of its range, the remaining lines of all lanes, from the
+ * start of the line each one is on, are parsed by {@link SwarLineParser}.
+ * <p>
+ * Requires {@code --add-modules jdk.incubator.vector}; the lane count is the one of the preferred
+ * species, 8 with AVX-512.
+ */
+public final class GatherLineParser implements LineParser {
+
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    // Chunks smaller than this per lane are not worth the setup and go to the scalar parser.
+    private static final long MIN_LANE_SIZE = 1024;
+
+    private final SwarLineParser scalar = new SwarLineParser();
+
+    @Override
+    public void parse(long start, long end, AggregationTable table) {
+        if (LANES < 2 || end - start < LANES * MIN_LANE_SIZE) {
+            scalar.parse(start, end, table);
+            return;
+        }
+        long[] positions = new long[LANES];
+        long[] ends = new long[LANES];
+        long laneSize = (end - start) / LANES;
+        for (int i = 0; i < LANES; i++) {
+            positions[i] = i == 0 ? start : ends[i - 1];
+            ends[i] = i == LANES - 1 ? end : Chunker.alignToLine(start + (i + 1) * laneSize, start, end);
+        }
+        long[] lineStarts = positions.clone();
+
+        long[] words = new long[LANES];
+        long[] numberWords = new long[LANES];
+        long[] lastWords = new long[LANES];
+        long[] secondLastWords = new long[LANES];
+        long[] nextSecondLastWords = new long[LANES];
+        long[] hashes = new long[LANES];
+        long[] lineHashes = new long[LANES];
+        long[] indexes = new long[LANES];
+        long[] numbers = new long[LANES];
+        long[] decimalSepPositions = new long[LANES];
+
+        step: while (true) {
+            for (int i = 0; i < LANES; i++) {
+                if (positions[i] >= ends[i]) {
+                    break step;
+                }
+                words[i] = Memory.getLong(positions[i]);
+            }
+            // The state of the lanes is kept in arrays between steps: vectors that live across the
+            // iterations of a loop compiled on stack replacement are boxed on every iteration.
+            LongVector word = LongVector.fromArray(SPECIES, words, 0);
+            LongVector hash = LongVector.fromArray(SPECIES, hashes, 0);
+
+            // SwarLineParser.findDelimiter() and mask(), lane-wise.
+            LongVector input = word.lanewise(VectorOperators.XOR, 0x3B3B3B3B3B3B3B3BL);
+            LongVector delimiter = input.sub(0x0101010101010101L).and(input.not()).and(0x8080808080808080L);
+            VectorMask<Long> found = delimiter.compare(VectorOperators.NE, 0);
+            if (!found.anyTrue()) {
+                hash.lanewise(VectorOperators.XOR, word).intoArray(hashes, 0);
+                word.intoArray(secondLastWords, 0);
+                for (int i = 0; i < LANES; i++) {
+                    positions[i] += Long.BYTES;
+                }
+                continue;
+            }
+            LongVector index = delimiter.lanewise(VectorOperators.TRAILING_ZEROS_COUNT).lanewise(VectorOperators.LSHR, 3);
+            LongVector lastWord = word.lanewise(VectorOperators.LSHL, index.neg().add(7).lanewise(VectorOperators.LSHL, 3), found);
+            hash = hash.lanewise(VectorOperators.XOR, lastWord);
+            index.intoArray(indexes, 0);
+
+            long foundLanes = found.toLong();
+            for (int i = 0; i < LANES; i++) {
+                numberWords[i] = (foundLanes & (1L << i)) != 0 ? Memory.getLong(positions[i] + indexes[i] + 1) : 0;
+            }
+
+            // SwarLineParser.decimalSepPos() and convertIntoNumber(), lane-wise.
+            LongVector numberWord = LongVector.fromArray(SPECIES, numberWords, 0);
+            LongVector decimalSepPos = numberWord.not().and(0x10101000).lanewise(VectorOperators.TRAILING_ZEROS_COUNT);
+            LongVector signed = numberWord.not().lanewise(VectorOperators.LSHL, 59).lanewise(VectorOperators.ASHR, 63);
+            LongVector designMask = signed.and(0xFF).not();
+            LongVector digits = numberWord.and(designMask).lanewise(VectorOperators.LSHL, decimalSepPos.neg().add(28)).and(0x0F000F0F00L);
+            LongVector absValue = digits.mul(0x640a0001).lanewise(VectorOperators.LSHR, 32).and(0x3FF);
+            LongVector number = absValue.lanewise(VectorOperators.XOR, signed).sub(signed);
+
+            lastWord.intoArray(lastWords, 0);
+            hash.intoArray(lineHashes, 0);
+            number.intoArray(numbers, 0);
+            decimalSepPos.intoArray(decimalSepPositions, 0);
+            // The state of the next step is stored before the table calls, as vectors that are live
+            // across calls are boxed as well.
+            hash.blend(0, found).intoArray(hashes, 0);
+            word.blend(0, found).intoArray(nextSecondLastWords, 0);
+            for (int i = 0; i < LANES; i++) {
+                if ((foundLanes & (1L << i)) == 0) {
+                    positions[i] += Long.BYTES;
+                    continue;
+                }
+                long nameEnd = positions[i] + indexes[i];
+                int nameLength = (int) (nameEnd - lineStarts[i]);
+                int value = (int) numbers[i];
+                long lineHash = lineHashes[i];
+                boolean recorded = nameLength < Long.BYTES ? table.tryRecord(lineHash, lastWords[i], value)
+                        : nameLength < 2 * Long.BYTES && table.tryRecord(lineHash, lastWords[i], secondLastWords[i], value);
+                if (!recorded) {
+                    table.record(lineStarts[i], nameLength, lineHash, value);
+                }
+                positions[i] = nameEnd + (decimalSepPositions[i] >>> 3) + 4;
+                lineStarts[i] = positions[i];
+            }
+            long[] swap = secondLastWords;
+            secondLastWords = nextSecondLastWords;
+            nextSecondLastWords = swap;
+        }
+
+        for (int i = 0; i < LANES; i++) {
+            if (lineStarts[i] < ends[i]) {
+                scalar.parse(lineStarts[i], ends[i], table);
+            }
+        }
+    }
+}
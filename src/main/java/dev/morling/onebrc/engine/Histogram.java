@@ -0,0 +1,68 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+/**
+ * An {@link Aggregate} which also counts the measurements of each of the 1999 possible temperatures
+ * (-99.9 to 99.9), so that percentiles are exact. The counts take memory with the number of distinct
+ * temperatures of the station, up to about 4 KB (see {@link TemperatureCounts}).
+ */
+public final class Histogram extends Aggregate {
+
+    public static final int BUCKETS = TemperatureCounts.BUCKETS;
+
+    private final TemperatureCounts counts;
+
+    public Histogram() {
+        this(new TemperatureCounts());
+    }
+
+    // Takes over the given counts.
+    Histogram(TemperatureCounts counts) {
+        this.counts = counts;
+    }
+
+    @Override
+    public void add(Aggregate other) {
+        super.add(other);
+        if (other instanceof Histogram histogram) {
+            counts.add(histogram.counts);
+        }
+    }
+
+    @Override
+    public Histogram copy() {
+        Histogram copy = new Histogram();
+        copy.add(this);
+        return copy;
+    }
+
+    /**
+     * Returns the nearest-rank percentile in tenths of a degree: the smallest temperature such that at
+     * least {@code p} percent of the measurements are less than or equal to it.
+     */
+    public int percentile(double p) {
+        long rank = Math.max(1, (long) Math.ceil(p / 100.0 * count));
+        int index = counts.indexOfRank(rank);
+        return index < 0 ? max : index + MIN_TEMP;
+    }
+
+    // min/mean/max/p50/p90/p99
+    @Override
+    public String toString() {
+        return super.toString() + "/" + percentile(50) / 10.0 + "/" + percentile(90) / 10.0 + "/" + percentile(99) / 10.0;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * A {@link StationTable} which additionally counts the measurements per temperature for each
+ * station, and hands out {@link Histogram}s. The counts of a station are allocated on its first
+ * measurement, indexed by the id the table gives the station, and stay small for stations with few
+ * distinct temperatures (see {@link TemperatureCounts}).
+ */
+public final class HistogramTable implements AggregationTable {
+
+    private final StationTable table;
+    private TemperatureCounts[] counts;
+
+    public HistogramTable() {
+        this(StationTable.DEFAULT_CAPACITY);
+    }
+
+    public HistogramTable(int capacity) {
+        this.table = new StationTable(capacity, StationTable.DEFAULT_LOAD_FACTOR);
+        this.counts = new TemperatureCounts[capacity];
+    }
+
+    @Override
+    public boolean tryRecord(long hash, long lastWord, int value) {
+        if (!table.tryRecord(hash, lastWord, value)) {
+            return false;
+        }
+        count(value);
+        return true;
+    }
+
+    @Override
+    public boolean tryRecord(long hash, long lastWord, long secondLastWord, int value) {
+        if (!table.tryRecord(hash, lastWord, secondLastWord, value)) {
+            return false;
+        }
+        count(value);
+        return true;
+    }
+
+    @Override
+    public void record(long nameAddress, int nameLength, long hash, int value) {
+        table.record(nameAddress, nameLength, hash, value);
+        count(value);
+    }
+
+    private void count(int value) {
+        int id = table.lastId();
+        if (id == counts.length) {
+            counts = Arrays.copyOf(counts, counts.length * 2);
+        }
+        TemperatureCounts station = counts[id];
+        if (station == null) {
+            station = counts[id] = new TemperatureCounts();
+        }
+        station.record(value);
+    }
+
+    @Override
+    public void forEach(BiConsumer<byte[], Aggregate> action) {
+        table.forEach((id, name, aggregate) -> {
+            Histogram histogram = new Histogram(counts[id]);
+            histogram.add(aggregate);
+            action.accept(name, histogram);
+        });
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Hands out lazily claimed shards like the {@link LazyShardChunker} it wraps, but with boundaries
+ * taken from the {@link LineIndex} of the input file, if there is one, so that no newline has to be
+ * searched for. Shards are then whole index blocks; inputs with a valid index of too few blocks to
+ * balance the workers, without one, or slices of a file other than its first lines (the engine
+ * parses the last ones apart, see {@link Input}), have their boundaries searched for.
+ */
+public final class IndexedChunker implements Chunker {
+
+    // Blocks per worker below which the index is too coarse for the lazy scheduling.
+    private static final int MIN_BLOCKS_PER_WORKER = 8;
+
+    private final LazyShardChunker shards;
+
+    public IndexedChunker(LazyShardChunker shards) {
+        this.shards = shards;
+    }
+
+    @Override
+    public ChunkQueue split(Input input, int workers) {
+        LineIndex index = index(input);
+        if (index == null || index.blocks() < workers * MIN_BLOCKS_PER_WORKER) {
+            return shards.split(input, workers);
+        }
+        long size = input.size();
+        return shards.split(input, workers, index.fileSize() / index.blocks(), offset -> Math.min(index.blockStart(offset), size));
+    }
+
+    private static LineIndex index(Input input) {
+        if (input.path() == null) {
+            return null;
+        }
+        try {
+            LineIndex index = LineIndex.readFor(input.path());
+            return index != null && input.offset() == 0 && index.fileSize() >= input.size() ? index : null;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A measurements file mapped into memory, addressed as {@code [address, address + size)}.
+ * <p>
+ * The mapping ends with the file, while the parsers read up to {@link LineParser#OVERREAD} bytes
+ * past the end of the lines they parse: when the file size is a multiple of the page size, that
+ * is past the mapping. The last lines of an input are therefore parsed from a padded copy (see
+ * {@link #tailOffset()} and {@link #paddedCopy(long)}).
+ */
+public final class Input implements AutoCloseable {
+
+    private final Path path;
+    private final Arena arena;
+    private final long address;
+    private final long size;
+    private final long offset;
+    private final boolean owner;
+
+    private Input(Path path, Arena arena, long address, long size, long offset, boolean owner) {
+        this.path = path;
+        this.arena = arena;
+        this.address = address;
+        this.size = size;
+        this.offset = offset;
+        this.owner = owner;
+    }
+
+    /**
+     * Maps the whole file. The global arena is used so that the mapping is never unmapped explicitly,
+     * which leaves the (serial) munmap to process exit.
+     */
+    public static Input map(Path path) throws IOException {
+        return map(path, Arena.global());
+    }
+
+    public static Input map(Path path, Arena arena) throws IOException {
+        return map(path, Long.MAX_VALUE, arena);
+    }
+
+    /**
+     * Maps the first {@code length} bytes of the file, or all of it if it is shorter. The last line
+     * of the input may then be cut short.
+     */
+    public static Input map(Path path, long length, Arena arena) throws IOException {
+        try (var fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = Math.min(fileChannel.size(), length);
+            long address = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size, arena).address();
+            return new Input(path, arena, address, size, 0, true);
+        }
+    }
+
+    /**
+     * Returns a view of {@code [offset, offset + length)} of this input. Closing the view does not
+     * unmap anything.
+     */
+    public Input slice(long offset, long length) {
+        if (offset < 0 || length < 0 || offset + length > size) {
+            throw new IndexOutOfBoundsException("Slice [" + offset + ", " + (offset + length) + ") of input of size " + size);
+        }
+        return new Input(path, arena, address + offset, length, this.offset + offset, false);
+    }
+
+    /**
+     * Returns the offset of the first line that has a byte within {@link LineParser#OVERREAD} bytes
+     * of the end of this input, 0 if there is none before. The lines before it can be parsed in
+     * place; the ones from it on, from a {@link #paddedCopy}.
+     */
+    public long tailOffset() {
+        long pos = end() - LineParser.OVERREAD;
+        while (pos > address && Memory.getByte(pos - 1) != '\n') {
+            pos--;
+        }
+        return Math.max(pos, address) - address;
+    }
+
+    /**
+     * Copies {@code [offset, size)} of this input into memory of its own, followed by a newline if
+     * the input does not end with one and by {@link LineParser#OVERREAD} bytes of padding. The copy
+     * has no path and is freed once unreachable.
+     */
+    public Input paddedCopy(long offset) {
+        return paddedCopy(address + offset, size - offset);
+    }
+
+    // The padded copy of [address, address + length), see paddedCopy(long).
+    static Input paddedCopy(long address, long length) {
+        boolean newline = length > 0 && Memory.getByte(address + length - 1) != '\n';
+        Arena auto = Arena.ofAuto();
+        MemorySegment copy = auto.allocate(length + 1 + LineParser.OVERREAD, Long.BYTES);
+        Memory.copy(address, copy.address(), length);
+        if (newline) {
+            copy.set(ValueLayout.JAVA_BYTE, length++, (byte) '\n');
+        }
+        return new Input(null, auto, copy.address(), length, 0, false);
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    public long address() {
+        return address;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * The offset of this input in its file, non-zero for slices.
+     */
+    public long offset() {
+        return offset;
+    }
+
+    public long end() {
+        return address + size;
+    }
+
+    @Override
+    public void close() {
+        if (owner && arena != Arena.global()) {
+            arena.close();
+        }
+    }
+}
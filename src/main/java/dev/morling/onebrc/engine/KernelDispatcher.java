@@ -0,0 +1,234 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.stream.Stream;
+
+/**
+ * Picks the parse kernel for the machine at hand rather than per fleet: which of the 64-bit SWAR
+ * loop of {@link SwarLineParser} and the 256 and 512-bit delimiter search of
+ * {@link VectorLineParser} is fastest depends on the CPU (AVX-512 frequency throttling, ARM
+ * without wide vectors) and on the data. {@link #calibrate} times each available kernel on the
+ * first few MB of the input and returns the fastest.
+ * <p>
+ * {@link #choose} makes the choice once per machine: it is cached in {@link #CACHE}
+ * ({@code ~/.onebrc-kernel}, for the user running it), for the CPU model, architecture, JVM version
+ * and set of candidates it was timed with, so that later runs neither pay for the calibration
+ * (about 0.1 to 0.3 s, mostly warming up the vector kernels) nor depend on the noise of a single
+ * timing. Deleting the file makes the next run calibrate again. Only the sample is mapped, and only
+ * when there is no cached choice.
+ * <p>
+ * The vector kernels are only candidates when {@code jdk.incubator.vector} is in the boot layer
+ * and the preferred species is at least as wide as theirs.
+ */
+public final class KernelDispatcher {
+
+    public static final String SWAR = "swar";
+    public static final String VECTOR_256 = "vector256";
+    public static final String VECTOR_512 = "vector512";
+
+    public static final Path CACHE = Path.of(System.getProperty("user.home"), ".onebrc-kernel");
+
+    // The sample is parsed once by every kernel, slice by slice, and only the second half of the
+    // slices is timed: the first half warms the kernels up (interpreted Vector API code is orders
+    // of magnitude slower than compiled), which the run after the calibration then benefits from.
+    // Each kernel is rated by its fastest slice, as slices that ran along a JIT compilation are
+    // slower whichever the kernel.
+    private static final long SAMPLE_SIZE = 4 * 1024 * 1024;
+    private static final long SLICE_SIZE = 64 * 1024;
+    // Below this, the timings are mostly noise, and would be cached as the choice for the machine.
+    private static final long MIN_SAMPLE_SIZE = 1024 * 1024;
+
+    private KernelDispatcher() {
+    }
+
+    /**
+     * The kernels that can run on this JVM and machine, by name, the portable SWAR loop first.
+     */
+    public static Map<String, LineParser> candidates() {
+        Map<String, LineParser> kernels = new LinkedHashMap<>();
+        kernels.put(SWAR, new SwarLineParser());
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            Vectors.addCandidates(kernels);
+        }
+        return kernels;
+    }
+
+    /**
+     * Returns the kernel of the given name, one of {@link #candidates()}.
+     */
+    public static LineParser kernel(String name) {
+        LineParser kernel = candidates().get(name);
+        if (kernel == null) {
+            throw new IllegalArgumentException("Unknown or unsupported kernel " + name + ", available: " + candidates().keySet());
+        }
+        return kernel;
+    }
+
+    /**
+     * Returns the cached choice for this machine, or calibrates on the file and caches the outcome
+     * (unless the file was too small to time). With a single candidate, there is nothing to choose.
+     */
+    public static Choice choose(Path file) throws IOException {
+        Map<String, LineParser> kernels = candidates();
+        if (kernels.size() == 1) {
+            return new Choice(SWAR, kernels.get(SWAR), Map.of());
+        }
+        Choice cached = cached();
+        if (cached != null) {
+            return cached;
+        }
+        Choice choice = calibrate(file);
+        if (!choice.nanosPerByte().isEmpty()) {
+            cache(choice);
+        }
+        return choice;
+    }
+
+    /**
+     * Returns the choice cached for this machine, null if there is none.
+     */
+    public static Choice cached() {
+        try {
+            List<String> lines = Files.exists(CACHE) ? Files.readAllLines(CACHE) : List.of();
+            if (lines.size() == 2 && lines.get(0).equals(machine())) {
+                LineParser kernel = candidates().get(lines.get(1));
+                return kernel != null ? new Choice(lines.get(1), kernel, Map.of()) : null;
+            }
+        }
+        catch (IOException | UncheckedIOException e) {
+            // Calibrated again.
+        }
+        return null;
+    }
+
+    /**
+     * Caches the given choice for this machine; failures are ignored, the choice is made again.
+     */
+    public static void cache(Choice choice) {
+        try {
+            Path temp = Files.createTempFile(CACHE.getParent(), "onebrc-kernel", ".tmp");
+            Files.write(temp, List.of(machine(), choice.name()));
+            Files.move(temp, CACHE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException | UncheckedIOException e) {
+            // Not cached.
+        }
+    }
+
+    // What a choice depends on besides the data.
+    private static String machine() {
+        String model = "unknown";
+        try (Stream<String> lines = Files.lines(Path.of("/proc/cpuinfo"))) {
+            model = lines.filter(line -> line.startsWith("model name")).findFirst().map(line -> line.substring(line.indexOf(':') + 1).trim()).orElse(model);
+        }
+        catch (IOException | UncheckedIOException e) {
+            // Not Linux, the architecture and JVM still tell apart most setups.
+        }
+        return System.getProperty("os.arch") + " " + model + " " + Runtime.version() + " " + candidates().keySet();
+    }
+
+    /**
+     * {@link #calibrate(Input)} on the first lines of the file, of which only the sample is mapped,
+     * and unmapped again before returning.
+     */
+    public static Choice calibrate(Path file) throws IOException {
+        // The slack covers the line cut short at the end of the mapped sample.
+        try (Input sample = Input.map(file, SAMPLE_SIZE + SLICE_SIZE, Arena.ofConfined())) {
+            return calibrate(sample);
+        }
+    }
+
+    /**
+     * Times the {@link #candidates()} on the first lines of the input, into throw-away tables, and
+     * returns the fastest ({@link #SWAR} for inputs too small to time).
+     */
+    public static Choice calibrate(Input input) {
+        long start = input.address();
+        // Up to the last lines, which the parsers can only read from a padded copy (see Input).
+        long end = Chunker.alignToLine(start + Math.min(SAMPLE_SIZE, input.tailOffset()), start, start + input.tailOffset());
+        Map<String, LineParser> kernels = candidates();
+        if (end - start < MIN_SAMPLE_SIZE) {
+            return new Choice(SWAR, kernels.get(SWAR), Map.of());
+        }
+        Map<String, Double> nanosPerByte = new LinkedHashMap<>();
+        Map<String, AggregationTable> tables = new LinkedHashMap<>();
+        kernels.forEach((name, kernel) -> tables.put(name, new StationTable()));
+
+        // Every slice is parsed by all kernels in turn, so that none runs on a colder cache or clock than the others.
+        long timed = start + (end - start) / 2;
+        for (long slice = start; slice < end;) {
+            long sliceEnd = Chunker.alignToLine(slice + SLICE_SIZE, slice, end);
+            for (Map.Entry<String, LineParser> kernel : kernels.entrySet()) {
+                long begin = System.nanoTime();
+                kernel.getValue().parse(slice, sliceEnd, tables.get(kernel.getKey()));
+                long elapsed = System.nanoTime() - begin;
+                if (slice >= timed) {
+                    nanosPerByte.merge(kernel.getKey(), (double) elapsed / (sliceEnd - slice), Math::min);
+                }
+            }
+            slice = sliceEnd;
+        }
+        String fastest = SWAR;
+        for (Map.Entry<String, Double> timing : nanosPerByte.entrySet()) {
+            if (timing.getValue() < nanosPerByte.get(fastest)) {
+                fastest = timing.getKey();
+            }
+        }
+        return new Choice(fastest, kernels.get(fastest), nanosPerByte);
+    }
+
+    /**
+     * The outcome of a calibration: the chosen kernel and the best time per byte of every candidate,
+     * none if the choice was not timed (cached, single candidate or input too small).
+     */
+    public record Choice(String name, LineParser kernel, Map<String, Double> nanosPerByte) {
+
+        @Override
+        public String toString() {
+            if (nanosPerByte.isEmpty()) {
+                return "Kernel " + name + " (not timed)";
+            }
+            StringJoiner timings = new StringJoiner(", ", "Kernel " + name + " (", ")");
+            nanosPerByte.forEach((kernel, time) -> timings.add(String.format("%s %.2f ns/byte", kernel, time)));
+            return timings.toString();
+        }
+    }
+
+    // Kept apart so that the vector classes are only loaded when the module is present.
+    private static final class Vectors {
+
+        static void addCandidates(Map<String, LineParser> kernels) {
+            int preferred = jdk.incubator.vector.ByteVector.SPECIES_PREFERRED.vectorBitSize();
+            if (preferred >= 256) {
+                kernels.put(VECTOR_256, new VectorLineParser(jdk.incubator.vector.ByteVector.SPECIES_256));
+            }
+            if (preferred >= 512) {
+                kernels.put(VECTOR_512, new VectorLineParser(jdk.incubator.vector.ByteVector.SPECIES_512));
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * The two-phase scheduling of {@code CalculateAverage_vemana}'s {@code SerialLazyShardQueue}: the
+ * first {@code 1 - commonChunkFraction} of the input is split into big chunks of
+ * {@code 2^chunkSizeBits} bytes, which are dealt out to the workers in advance (contiguous runs, no
+ * contention); the rest is a shared pool of small chunks of {@code 2^commonChunkSizeBits} bytes,
+ * claimed with an atomic add. Workers that are faster (or less throttled) than others take more
+ * chunks from the pool, so that all of them finish at about the same time.
+ * <p>
+ * Chunk boundaries are plain offsets, aligned to the next line start when handed out; a line
+ * belongs to the chunk in which it starts. The line start is searched for in the input, or looked
+ * up in a {@link LineIndex} (see {@link IndexedChunker}).
+ */
+public final class LazyShardChunker implements Chunker {
+
+    // Per-worker slots are 16 longs apart to keep them on separate cache lines.
+    private static final int SLOT_SHIFT = 4;
+
+    private final int chunkSizeBits;
+    private final double commonChunkFraction;
+    private final int commonChunkSizeBits;
+
+    public LazyShardChunker(int chunkSizeBits, double commonChunkFraction, int commonChunkSizeBits) {
+        if (commonChunkFraction < 0 || commonChunkFraction >= 0.9) {
+            throw new IllegalArgumentException("Common chunk fraction must be in [0, 0.9): " + commonChunkFraction);
+        }
+        if (chunkSizeBits < 0 || commonChunkSizeBits < 0 || chunkSizeBits > 40 || commonChunkSizeBits > 40) {
+            throw new IllegalArgumentException("Chunk size bits out of range: " + chunkSizeBits + ", " + commonChunkSizeBits);
+        }
+        this.chunkSizeBits = chunkSizeBits;
+        this.commonChunkFraction = commonChunkFraction;
+        this.commonChunkSizeBits = commonChunkSizeBits;
+    }
+
+    /**
+     * Chunk sizes derived from the input size and worker count of each run (see {@link #split}).
+     */
+    public LazyShardChunker() {
+        this.chunkSizeBits = -1;
+        this.commonChunkFraction = -1;
+        this.commonChunkSizeBits = -1;
+    }
+
+    @Override
+    public ChunkQueue split(Input input, int workers) {
+        return split(input, workers, 1, null);
+    }
+
+    /**
+     * Splits with derived chunks of at least {@code minChunkSize} bytes, whose boundaries are moved
+     * to line starts by {@code lineStart} (from and to offsets in the input) if it is not null.
+     */
+    ChunkQueue split(Input input, int workers, long minChunkSize, LongUnaryOperator lineStart) {
+        long size = input.size();
+        int bits = chunkSizeBits;
+        int commonBits = commonChunkSizeBits;
+        double fraction = commonChunkFraction;
+        if (bits < 0) {
+            // About 16 big chunks per worker, between 64 KB and 4 MB; small chunks a quarter of that.
+            bits = Math.clamp(63 - Long.numberOfLeadingZeros(Math.max(1, size / (workers * 16L))), 16, 22);
+            commonBits = Math.max(bits - 2, 64 - Long.numberOfLeadingZeros(minChunkSize - 1));
+            bits = Math.max(bits, commonBits);
+            // A tenth of the input absorbs speed differences of the same order between the cores.
+            fraction = workers == 1 ? 0 : 0.1;
+        }
+        return new Queue(input, workers, 1L << bits, fraction, 1L << commonBits, lineStart);
+    }
+
+    private static final class Queue implements ChunkQueue {
+
+        private final long start;
+        private final long end;
+        private final long chunkSize;
+        private final long commonChunkSize;
+        private final long commonPoolEnd;
+        private final AtomicLong commonPool;
+        // Per worker: next chunk offset, remaining chunks.
+        private final long[] perWorker;
+        private final LongUnaryOperator lineStart;
+
+        Queue(Input input, int workers, long chunkSize, double commonChunkFraction, long commonChunkSize, LongUnaryOperator lineStart) {
+            this.lineStart = lineStart;
+            this.start = input.address();
+            this.end = input.end();
+            this.chunkSize = chunkSize;
+            this.commonChunkSize = commonChunkSize;
+            this.commonPoolEnd = input.size();
+            long commonPoolStart = Math.min(((long) (input.size() * (1 - commonChunkFraction))) / chunkSize * chunkSize, input.size());
+            this.commonPool = new AtomicLong(commonPoolStart);
+            this.perWorker = new long[workers << SLOT_SHIFT];
+            long remainingChunks = (commonPoolStart + chunkSize - 1) / chunkSize;
+            long current = 0;
+            for (int i = 0; i < workers; i++) {
+                long chunks = (remainingChunks + workers - i - 1) / (workers - i);
+                perWorker[i << SLOT_SHIFT] = current;
+                perWorker[(i << SLOT_SHIFT) + 1] = chunks;
+                current += chunks * chunkSize;
+                remainingChunks -= chunks;
+            }
+        }
+
+        @Override
+        public boolean next(int worker, Chunk chunk) {
+            int slot = worker << SLOT_SHIFT;
+            while (true) {
+                long from;
+                long to;
+                if (perWorker[slot + 1] > 0) {
+                    from = perWorker[slot];
+                    to = from + chunkSize;
+                    perWorker[slot] = to;
+                    perWorker[slot + 1]--;
+                }
+                else {
+                    from = commonPool.getAndAdd(commonChunkSize);
+                    if (from >= commonPoolEnd) {
+                        return false;
+                    }
+                    to = from + commonChunkSize;
+                }
+                long chunkStart = align(from);
+                long chunkEnd = align(Math.min(to, commonPoolEnd));
+                // Chunks smaller than a line are empty once aligned.
+                if (chunkStart < chunkEnd) {
+                    chunk.set(chunkStart, chunkEnd);
+                    return true;
+                }
+            }
+        }
+
+        private long align(long offset) {
+            return lineStart == null ? Chunker.alignToLine(start + offset, start, end) : start + lineStart.applyAsLong(offset);
+        }
+    }
+}
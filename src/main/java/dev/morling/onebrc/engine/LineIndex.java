@@ -0,0 +1,216 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Sidecar index of a measurements file ({@code <file>.idx}): line-aligned offsets roughly every
+ * {@code stride} bytes, and the number of rows between consecutive offsets. It lets workers start
+ * on line boundaries without probing the file for newlines, and gives the exact row count without
+ * parsing.
+ * <p>
+ * The index is only used while the size and the modification time of the file are those it was
+ * built for.
+ * <p>
+ * Binary format (big-endian): magic, version, file size, file modification time (millis), stride,
+ * block count {@code n}, then the {@code n + 1} block offsets (the first is 0, the last is the file
+ * size), then the {@code n} row counts.
+ */
+public final class LineIndex {
+
+    public static final long DEFAULT_STRIDE = 1024 * 1024;
+
+    private static final int MAGIC = 0x31494458; // "1IDX"
+    private static final int VERSION = 1;
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+    private final long fileSize;
+    private final long stride;
+    private final long[] offsets;
+    private final long[] rows;
+
+    private LineIndex(long fileSize, long stride, long[] offsets, long[] rows) {
+        this.fileSize = fileSize;
+        this.stride = stride;
+        this.offsets = offsets;
+        this.rows = rows;
+    }
+
+    public static Path pathFor(Path file) {
+        return file.resolveSibling(file.getFileName() + ".idx");
+    }
+
+    /**
+     * Builds the index of an input, counting the rows of the blocks in parallel.
+     */
+    public static LineIndex build(Input input, long stride) {
+        if (stride <= 0) {
+            throw new IllegalArgumentException("Stride must be positive: " + stride);
+        }
+        long start = input.address();
+        long end = input.end();
+        int blocks = (int) Math.max(1, (input.size() + stride - 1) / stride);
+        long[] bounds = new long[blocks + 1];
+        for (int i = 1; i < blocks; i++) {
+            bounds[i] = Chunker.alignToLine(Math.max(start + bounds[i - 1], start + i * stride), start, end) - start;
+        }
+        bounds[blocks] = input.size();
+        long[] rows = new long[blocks];
+        IntStream.range(0, blocks).parallel().forEach(i -> rows[i] = countLines(start + bounds[i], start + bounds[i + 1]));
+        return new LineIndex(input.size(), stride, bounds, rows);
+    }
+
+    /**
+     * Builds the index from the offsets at which a generator started new blocks while writing.
+     *
+     * @param offsets the line-aligned block offsets, starting with 0 and ending with the file size
+     */
+    public static LineIndex of(long stride, long[] offsets, long[] rows) {
+        if (offsets.length != rows.length + 1 || offsets[0] != 0) {
+            throw new IllegalArgumentException("Expected " + (rows.length + 1) + " offsets starting at 0");
+        }
+        return new LineIndex(offsets[offsets.length - 1], stride, offsets.clone(), rows.clone());
+    }
+
+    /**
+     * Reads the index of the given file, or returns {@code null} if there is none or if it does not
+     * belong to the current version of the file.
+     */
+    public static LineIndex readFor(Path file) throws IOException {
+        Path indexFile = pathFor(file);
+        if (!Files.exists(indexFile)) {
+            return null;
+        }
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a line index: " + indexFile);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported line index version " + version + ": " + indexFile);
+            }
+            long fileSize = in.readLong();
+            long lastModified = in.readLong();
+            if (fileSize != Files.size(file) || lastModified != Files.getLastModifiedTime(file).toMillis()) {
+                return null;
+            }
+            long stride = in.readLong();
+            int blocks = in.readInt();
+            long[] offsets = new long[blocks + 1];
+            for (int i = 0; i <= blocks; i++) {
+                offsets[i] = in.readLong();
+            }
+            long[] rows = new long[blocks];
+            for (int i = 0; i < blocks; i++) {
+                rows[i] = in.readLong();
+            }
+            return new LineIndex(fileSize, stride, offsets, rows);
+        }
+    }
+
+    /**
+     * Writes the index next to the file it was built for, once that file is complete.
+     */
+    public void writeFor(Path file) throws IOException {
+        if (fileSize != Files.size(file)) {
+            throw new IllegalStateException("Index of " + fileSize + " bytes does not match " + file);
+        }
+        Path indexFile = pathFor(file);
+        Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fileSize);
+            out.writeLong(Files.getLastModifiedTime(file).toMillis());
+            out.writeLong(stride);
+            out.writeInt(rows.length);
+            for (long offset : offsets) {
+                out.writeLong(offset);
+            }
+            for (long count : rows) {
+                out.writeLong(count);
+            }
+        }
+        Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public long fileSize() {
+        return fileSize;
+    }
+
+    public int blocks() {
+        return rows.length;
+    }
+
+    // Start of the given block, block count gives the end of the last one.
+    public long offset(int block) {
+        return offsets[block];
+    }
+
+    public long rows(int block) {
+        return rows[block];
+    }
+
+    public long rows() {
+        long total = 0;
+        for (long count : rows) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the start of the first block at or after {@code offset}, the file size past the last one.
+     */
+    public long blockStart(long offset) {
+        int block = Arrays.binarySearch(offsets, offset);
+        return offsets[block >= 0 ? block : Math.min(-block - 1, offsets.length - 1)];
+    }
+
+    // Counts the newlines in [start, end), a long at a time.
+    static long countLines(long start, long end) {
+        long count = 0;
+        long pos = start;
+        for (; pos + Long.BYTES <= end; pos += Long.BYTES) {
+            long input = Memory.getLong(pos) ^ (ONES * '\n');
+            // Exact zero-byte test (no false positives from borrows): high bit set where the byte is 0.
+            long zeros = ~(((input & LOW_BITS) + LOW_BITS) | input | LOW_BITS);
+            count += Long.bitCount(zeros);
+        }
+        for (; pos < end; pos++) {
+            if (Memory.getByte(pos) == '\n') {
+                count++;
+            }
+        }
+        // A last line without a trailing newline.
+        if (end > start && Memory.getByte(end - 1) != '\n') {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+/**
+ * Parses {@code <name>;<temperature>\n} lines and records them into an {@link AggregationTable}.
+ * Implementations are stateless and shared by all workers.
+ */
+public interface LineParser {
+
+    /**
+     * Upper bound of the number of bytes a parser may read past the end of a chunk.
+     */
+    int OVERREAD = 16;
+
+    /**
+     * Parses all lines of the chunk {@code [start, end)}. Implementations may read up to
+     * {@link #OVERREAD} bytes past {@code end}, but never use them.
+     */
+    void parse(long start, long end, AggregationTable table);
+}
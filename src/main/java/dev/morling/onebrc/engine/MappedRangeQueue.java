@@ -0,0 +1,171 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Maps a file range by range instead of as a whole: workers claim fixed-size ranges in order, each
+ * mapped in an arena of its own, and unmap the range they are done with when they ask for the next
+ * one. Unmapping, which the kernel does serially for a whole-file mapping at exit, is thus spread
+ * over the workers and overlapped with the parsing of the others, without running the work in a
+ * subprocess.
+ * <p>
+ * The ranges are claimed lazily from one pool in file order, so faster workers take more of them;
+ * unlike the {@link LazyShardChunker}, there are no per-worker runs, as every range needs a mapping
+ * of its own anyway. A range is cut to the lines that start in it. With a valid {@link LineIndex}
+ * whose blocks are not larger than the ranges, the cuts are its block offsets and the range is
+ * mapped from the page of its first line to {@link LineParser#OVERREAD} bytes past its last one.
+ * Otherwise, it is mapped from the page before its nominal start to {@link #MARGIN} bytes past its
+ * nominal end, and the cuts are searched for. The last lines of the file, which the parser would
+ * read past the mapping, are parsed from a padded copy (see {@link Input}), handed out as a chunk of
+ * its own right after the rest of the last range.
+ * <p>
+ * The arenas are confined, as a worker asks for all of its chunks from the same thread, and closing
+ * a shared arena would stop all threads for a handshake.
+ */
+public final class MappedRangeQueue implements Chunker.ChunkQueue {
+
+    public static final long DEFAULT_RANGE_SIZE = 16 * 1024 * 1024;
+
+    // Room for the line crossing the end of a range and for the parser to read past it.
+    static final long MARGIN = 64 * 1024;
+
+    private final Path file;
+    private final long size;
+    private final long rangeSize;
+    private final Set<Mapping.Hint> hints;
+    private final LineIndex index;
+    private final AtomicLong nextRange = new AtomicLong();
+    private final Arena[] arenas;
+    // Per worker: the padded copy of the last lines to hand out next, and the one being parsed.
+    private final Input[] tails;
+    private final Input[] copies;
+
+    public MappedRangeQueue(Path file, int workers) throws IOException {
+        this(file, workers, DEFAULT_RANGE_SIZE, Mapping.hints());
+    }
+
+    public MappedRangeQueue(Path file, int workers, long rangeSize, Set<Mapping.Hint> hints) throws IOException {
+        if (rangeSize < Mapping.PAGE_SIZE) {
+            throw new IllegalArgumentException("Range size must be at least one page: " + rangeSize);
+        }
+        this.file = file;
+        this.size = Files.size(file);
+        this.rangeSize = rangeSize;
+        this.hints = hints;
+        LineIndex index = LineIndex.readFor(file);
+        this.index = index != null && index.fileSize() == size && index.fileSize() / index.blocks() <= rangeSize ? index : null;
+        this.arenas = new Arena[workers];
+        this.tails = new Input[workers];
+        this.copies = new Input[workers];
+    }
+
+    @Override
+    public boolean next(int worker, Chunk chunk) {
+        copies[worker] = null;
+        if (tails[worker] != null) {
+            return copy(worker, chunk);
+        }
+        while (true) {
+            if (arenas[worker] != null) {
+                arenas[worker].close();
+                arenas[worker] = null;
+            }
+            long start = nextRange.getAndIncrement() * rangeSize;
+            if (start >= size) {
+                return false;
+            }
+            long end = Math.min(size, start + rangeSize);
+            long from = index != null ? index.blockStart(start) : start;
+            long to = index != null ? index.blockStart(end) : end;
+            if (from == to) {
+                continue;
+            }
+            long mapStart;
+            long mapEnd;
+            if (index != null) {
+                mapStart = from & -Mapping.PAGE_SIZE;
+                mapEnd = Math.min(size, to + LineParser.OVERREAD);
+            }
+            else {
+                mapStart = Math.max(0, start - 1) & -Mapping.PAGE_SIZE;
+                mapEnd = end == size ? size : Math.min(size, end + MARGIN);
+            }
+
+            Arena arena = Arena.ofConfined();
+            arenas[worker] = arena;
+            long address;
+            try {
+                address = Mapping.map(file, mapStart, mapEnd - mapStart, arena, hints).address();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            // Address of file offset 0, were the whole file mapped.
+            long base = address - mapStart;
+            long chunkStart;
+            long chunkEnd;
+            if (index != null) {
+                chunkStart = base + from;
+                chunkEnd = base + to;
+            }
+            else {
+                chunkStart = Chunker.alignToLine(base + start, address, base + mapEnd);
+                // Unless the mapping ends with the file, the parser must not read past it.
+                long limit = mapEnd == size ? base + size : base + mapEnd - LineParser.OVERREAD;
+                chunkEnd = Chunker.alignToLine(base + end, address, limit);
+                if (chunkEnd == limit && mapEnd < size && Memory.getByte(limit - 1) != '\n') {
+                    throw new IllegalStateException("Line longer than " + MARGIN + " bytes after offset " + end + " of " + file);
+                }
+            }
+            if (mapEnd == size) {
+                // The lines with a byte within OVERREAD of the end of the mapping.
+                long tailStart = base + size - LineParser.OVERREAD;
+                while (tailStart > chunkStart && Memory.getByte(tailStart - 1) != '\n') {
+                    tailStart--;
+                }
+                tailStart = Math.clamp(tailStart, chunkStart, chunkEnd);
+                if (tailStart < chunkEnd) {
+                    tails[worker] = Input.paddedCopy(tailStart, chunkEnd - tailStart);
+                    chunkEnd = tailStart;
+                }
+            }
+            if (chunkStart < chunkEnd) {
+                Mapping.advise(chunkStart, chunkEnd - chunkStart, hints);
+                chunk.set(chunkStart, chunkEnd);
+                return true;
+            }
+            if (tails[worker] != null) {
+                return copy(worker, chunk);
+            }
+        }
+    }
+
+    // Hands out the padded copy of the last lines, referenced until the worker asks again.
+    private boolean copy(int worker, Chunk chunk) {
+        copies[worker] = tails[worker];
+        tails[worker] = null;
+        chunk.set(copies[worker].address(), copies[worker].end());
+        return true;
+    }
+}
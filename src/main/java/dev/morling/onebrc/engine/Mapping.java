@@ -0,0 +1,223 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Read-only file mappings with optional paging hints, to avoid taking a page fault for every 4 KB
+ * page during the scan. The hints are selected with {@code -Donebrc.mmap=<hint>,...}:
+ * <ul>
+ * <li>{@code populate}: the file is mapped with {@code mmap(MAP_POPULATE)}, through the foreign
+ * function API, so that the page tables are filled (and the file read) up front</li>
+ * <li>{@code advise}: each worker calls {@link #advise} on its range, which issues
+ * {@code madvise(MADV_SEQUENTIAL)} and {@code madvise(MADV_WILLNEED)} (advice values are not flags,
+ * so these are two calls)</li>
+ * </ul>
+ * There is no {@code MADV_HUGEPAGE}: page-cache pages of a file are only collapsed into huge pages by
+ * {@code khugepaged} on kernels built with {@code CONFIG_READ_ONLY_THP_FOR_FS}, so on stock kernels
+ * the mapping keeps 4 KB pages whatever the advice.
+ * Without hints, the file is mapped with {@link FileChannel#map}. With {@code -Donebrc.mmap.stats},
+ * {@link Probe#report} prints the wall time and the page faults of the process to stderr, to compare
+ * the hints.
+ * <p>
+ * The hints are JVM-only. GraalVM 21 native images have no foreign function downcalls, and the
+ * thomaswue image is built with {@code -H:-ParseRuntimeOptions}, so it takes no {@code -D} options
+ * either. In a native image, the hints are ignored and the file is mapped with
+ * {@link FileChannel#map}; the class must be initialized at build time (see
+ * {@code prepare_thomaswue.sh}), so that the downcalls are not even compiled in.
+ */
+public final class Mapping {
+
+    public static final String HINTS_PROPERTY = "onebrc.mmap";
+    public static final String STATS_PROPERTY = "onebrc.mmap.stats";
+
+    public enum Hint {
+        POPULATE,
+        ADVISE
+    }
+
+    private static final int PROT_READ = 0x1;
+    private static final int MAP_SHARED = 0x01;
+    private static final int MAP_POPULATE = 0x8000;
+    private static final int O_RDONLY = 0;
+    private static final int MADV_SEQUENTIAL = 2;
+    private static final int MADV_WILLNEED = 3;
+    static final long PAGE_SIZE = 4096;
+
+    // Folded to true when initialized while building a native image.
+    private static final boolean NATIVE_IMAGE = System.getProperty("org.graalvm.nativeimage.imagecode") != null;
+
+    private Mapping() {
+    }
+
+    /**
+     * Returns the hints selected by the {@value #HINTS_PROPERTY} system property.
+     */
+    public static Set<Hint> hints() {
+        Set<Hint> hints = EnumSet.noneOf(Hint.class);
+        if (NATIVE_IMAGE) {
+            return hints;
+        }
+        for (String hint : System.getProperty(HINTS_PROPERTY, "").split(",")) {
+            if (!hint.isBlank()) {
+                hints.add(Hint.valueOf(hint.trim().toUpperCase(Locale.ROOT)));
+            }
+        }
+        return hints;
+    }
+
+    /**
+     * Maps the whole file read-only, unmapped when the arena is closed.
+     */
+    public static MemorySegment map(Path file, Arena arena, Set<Hint> hints) throws IOException {
+        return map(file, 0, Files.size(file), arena, hints);
+    }
+
+    /**
+     * Maps {@code [offset, offset + length)} of the file read-only, unmapped when the arena is
+     * closed. With {@code populate}, the offset must be a multiple of the page size.
+     */
+    public static MemorySegment map(Path file, long offset, long length, Arena arena, Set<Hint> hints) throws IOException {
+        if (NATIVE_IMAGE || !hints.contains(Hint.POPULATE)) {
+            try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, offset, length, arena);
+            }
+        }
+        if (length == 0) {
+            return MemorySegment.NULL;
+        }
+        if (offset % PAGE_SIZE != 0) {
+            throw new IllegalArgumentException("Offset is not page-aligned: " + offset);
+        }
+        try (Arena local = Arena.ofConfined()) {
+            int fd = (int) Native.OPEN.invokeExact(local.allocateUtf8String(file.toString()), O_RDONLY);
+            if (fd < 0) {
+                throw new IOException("Cannot open " + file);
+            }
+            MemorySegment address;
+            try {
+                address = (MemorySegment) Native.MMAP.invokeExact(MemorySegment.NULL, length, PROT_READ, MAP_SHARED | MAP_POPULATE, fd, offset);
+            }
+            finally {
+                int ignored = (int) Native.CLOSE.invokeExact(fd);
+            }
+            if (address.address() == -1L) {
+                throw new IOException("Cannot map " + file);
+            }
+            return address.reinterpret(length, arena, segment -> unmap(segment.address(), length));
+        }
+        catch (IOException | RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Advises the kernel that {@code [address, address + length)} of a mapping is about to be read
+     * sequentially, if the {@code advise} hint is selected. Failures are ignored, these are hints.
+     */
+    public static void advise(long address, long length, Set<Hint> hints) {
+        if (NATIVE_IMAGE || !hints.contains(Hint.ADVISE) || length <= 0) {
+            return;
+        }
+        // madvise wants a page-aligned start.
+        long start = address & -PAGE_SIZE;
+        long size = address + length - start;
+        for (int advice : new int[]{ MADV_SEQUENTIAL, MADV_WILLNEED }) {
+            try {
+                int ignored = (int) Native.MADVISE.invokeExact(MemorySegment.ofAddress(start), size, advice);
+            }
+            catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    static void unmap(long address, long size) {
+        try {
+            int ignored = (int) Native.MUNMAP.invokeExact(MemorySegment.ofAddress(address), size);
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Measures the wall time and page faults from its creation to {@link #report}, if enabled by
+     * the {@value #STATS_PROPERTY} system property.
+     */
+    public static final class Probe {
+
+        private final boolean enabled = Boolean.getBoolean(STATS_PROPERTY);
+        private final long start = System.nanoTime();
+        private final long[] faults = enabled ? faults() : null;
+
+        public void report(String label) {
+            if (!enabled) {
+                return;
+            }
+            long[] now = faults();
+            System.err.printf("%s %s: %d ms, %d minor faults, %d major faults%n", label, hints(),
+                    (System.nanoTime() - start) / 1_000_000, now[0] - faults[0], now[1] - faults[1]);
+        }
+
+        // Fields 10 (minflt) and 12 (majflt) of /proc/self/stat, counted after the command name.
+        private static long[] faults() {
+            try {
+                String stat = Files.readString(Path.of("/proc/self/stat"));
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                return new long[]{ Long.parseLong(fields[7]), Long.parseLong(fields[9]) };
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // Resolved on first use only, so that plain mappings do not need native access.
+    private static final class Native {
+
+        static final MethodHandle OPEN = downcall("open", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_INT));
+        static final MethodHandle CLOSE = downcall("close", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT));
+        static final MethodHandle MMAP = downcall("mmap", FunctionDescriptor.of(ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.JAVA_LONG,
+                ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG));
+        static final MethodHandle MUNMAP = downcall("munmap", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_LONG));
+        static final MethodHandle MADVISE = downcall("madvise", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT));
+
+        private static MethodHandle downcall(String name, FunctionDescriptor descriptor) {
+            Linker linker = Linker.nativeLinker();
+            return linker.downcallHandle(linker.defaultLookup().find(name).orElseThrow(() -> new UnsupportedOperationException(name + " is not available")),
+                    descriptor);
+        }
+    }
+}
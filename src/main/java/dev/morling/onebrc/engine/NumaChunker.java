@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+/**
+ * Assigns one contiguous range of the input to each NUMA node, in proportion to its number of
+ * workers (see {@link NumaTopology#groups}), and splits each range among the workers of that node
+ * with the wrapped chunker. Each worker pins its thread to the CPUs of its node when it starts,
+ * before it allocates its table, so that the table is first touched on that node too, and restores
+ * the previous affinity once it has no work left, so that pool threads are left as they were.
+ * <p>
+ * Pages that are not cached yet are read into the page cache by the first thread touching them, so
+ * pinned workers also get the pages of their range on their own node's memory. There is no
+ * {@code mbind}: for a shared mapping of a regular file, Linux places page-cache pages by the
+ * policy of the faulting thread, not by the policy of the mapping.
+ */
+public final class NumaChunker implements Chunker {
+
+    private final NumaTopology topology;
+    private final Chunker chunker;
+
+    public NumaChunker(NumaTopology topology, Chunker chunker) {
+        this.topology = topology;
+        this.chunker = chunker;
+    }
+
+    @Override
+    public ChunkQueue split(Input input, int workers) {
+        int nodes = topology.nodes();
+        int[] first = topology.groups(workers);
+        int[] nodeOf = new int[workers];
+        ChunkQueue[] queues = new ChunkQueue[nodes];
+        long[][] masks = new long[nodes][];
+        long start = input.address();
+        for (int node = 0; node < nodes; node++) {
+            int size = first[node + 1] - first[node];
+            long end = Chunker.alignToLine(input.address() + input.size() * first[node + 1] / workers, start, input.end());
+            if (size > 0) {
+                queues[node] = chunker.split(input.slice(start - input.address(), end - start), size);
+                masks[node] = Affinity.mask(topology.cpus(node));
+            }
+            for (int worker = first[node]; worker < first[node + 1]; worker++) {
+                nodeOf[worker] = node;
+            }
+            start = end;
+        }
+
+        long[][] saved = new long[workers][];
+        boolean[] started = new boolean[workers];
+        return new ChunkQueue() {
+            @Override
+            public void start(int worker) {
+                if (!started[worker]) {
+                    started[worker] = true;
+                    saved[worker] = Affinity.current();
+                    int node = nodeOf[worker];
+                    Affinity.set(masks[node]);
+                    queues[node].start(worker - first[node]);
+                }
+            }
+
+            @Override
+            public boolean next(int worker, Chunk chunk) {
+                // Queues that are not the first of a concatenation are not started.
+                start(worker);
+                int node = nodeOf[worker];
+                if (queues[node].next(worker - first[node], chunk)) {
+                    return true;
+                }
+                if (saved[worker] != null) {
+                    Affinity.set(saved[worker]);
+                    saved[worker] = null;
+                }
+                return false;
+            }
+        };
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.util.List;
+import java.util.SortedMap;
+import java.util.stream.IntStream;
+
+/**
+ * Merges the tables of each NUMA node with the wrapped merger, on a thread pinned to that node (so
+ * that the tables are read from local memory), then merges the per-node results. The tables must
+ * be in worker order and the workers grouped as by {@link NumaTopology#groups}, as done by
+ * {@link NumaChunker}.
+ */
+public final class NumaMerger implements Merger {
+
+    private final NumaTopology topology;
+    private final Merger merger;
+
+    public NumaMerger(NumaTopology topology, Merger merger) {
+        this.topology = topology;
+        this.merger = merger;
+    }
+
+    @Override
+    public SortedMap<String, Aggregate> merge(List<? extends AggregationTable> tables) {
+        int[] first = topology.groups(tables.size());
+        List<SortedMap<String, Aggregate>> nodes = IntStream.range(0, topology.nodes()).parallel()
+                .filter(node -> first[node] < first[node + 1])
+                .mapToObj(node -> {
+                    long[] saved = Affinity.current();
+                    Affinity.set(Affinity.mask(topology.cpus(node)));
+                    try {
+                        return merger.merge(tables.subList(first[node], first[node + 1]));
+                    }
+                    finally {
+                        Affinity.set(saved);
+                    }
+                }).toList();
+
+        SortedMap<String, Aggregate> result = nodes.get(0);
+        for (SortedMap<String, Aggregate> node : nodes.subList(1, nodes.size())) {
+            node.forEach((name, aggregate) -> {
+                Aggregate current = result.get(name);
+                if (current == null) {
+                    result.put(name, aggregate);
+                }
+                else {
+                    current.add(aggregate);
+                }
+            });
+        }
+        return result;
+    }
+}
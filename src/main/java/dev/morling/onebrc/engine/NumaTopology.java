@@ -0,0 +1,147 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * The NUMA nodes of the machine and their CPUs, as listed in {@code /sys/devices/system/node}.
+ * Only the CPUs the process may run on are kept, and nodes without any (memory-only nodes) are
+ * dropped. Without that directory, the machine is a single node with all available processors.
+ */
+public final class NumaTopology {
+
+    private static final Path NODES = Path.of("/sys/devices/system/node");
+    private static final Pattern NODE = Pattern.compile("node\\d+");
+
+    private final int[][] cpus;
+
+    private NumaTopology(int[][] cpus) {
+        this.cpus = cpus;
+    }
+
+    /**
+     * Returns a topology with the given CPUs per node.
+     */
+    public static NumaTopology of(int[]... cpus) {
+        if (cpus.length == 0) {
+            throw new IllegalArgumentException("At least one node is required");
+        }
+        for (int[] node : cpus) {
+            if (node.length == 0) {
+                throw new IllegalArgumentException("Nodes must have CPUs");
+            }
+        }
+        return new NumaTopology(cpus.clone());
+    }
+
+    public static NumaTopology detect() {
+        List<int[]> nodes = new ArrayList<>();
+        if (Files.isDirectory(NODES)) {
+            long[] allowed = Affinity.current();
+            try (Stream<Path> entries = Files.list(NODES)) {
+                for (Path node : entries.filter(p -> NODE.matcher(p.getFileName().toString()).matches())
+                        .sorted((a, b) -> Integer.compare(nodeNumber(a), nodeNumber(b))).toList()) {
+                    int[] cpus = parseCpuList(Files.readString(node.resolve("cpulist")));
+                    if (allowed != null) {
+                        cpus = Arrays.stream(cpus).filter(cpu -> Affinity.contains(allowed, cpu)).toArray();
+                    }
+                    if (cpus.length > 0) {
+                        nodes.add(cpus);
+                    }
+                }
+            }
+            catch (IOException e) {
+                nodes.clear();
+            }
+        }
+        if (nodes.isEmpty()) {
+            nodes.add(IntStream.range(0, Runtime.getRuntime().availableProcessors()).toArray());
+        }
+        return new NumaTopology(nodes.toArray(int[][]::new));
+    }
+
+    /**
+     * Parses a kernel CPU list such as {@code 0-7,16-23}.
+     */
+    static int[] parseCpuList(String list) {
+        IntStream cpus = IntStream.empty();
+        for (String range : list.trim().split(",")) {
+            if (range.isEmpty()) {
+                continue;
+            }
+            int dash = range.indexOf('-');
+            int first = Integer.parseInt(dash < 0 ? range : range.substring(0, dash));
+            int last = dash < 0 ? first : Integer.parseInt(range.substring(dash + 1));
+            cpus = IntStream.concat(cpus, IntStream.rangeClosed(first, last));
+        }
+        return cpus.toArray();
+    }
+
+    private static int nodeNumber(Path node) {
+        return Integer.parseInt(node.getFileName().toString().substring(4));
+    }
+
+    public int nodes() {
+        return cpus.length;
+    }
+
+    public int[] cpus(int node) {
+        return cpus[node].clone();
+    }
+
+    public int cpuCount() {
+        return Arrays.stream(cpus).mapToInt(node -> node.length).sum();
+    }
+
+    /**
+     * Splits the workers into one contiguous group per node, in node order and in proportion to the
+     * CPUs of the nodes, with at least one worker per node as long as there are enough workers.
+     *
+     * @return the index of the first worker of each node, followed by {@code workers}
+     */
+    public int[] groups(int workers) {
+        int[] first = new int[cpus.length + 1];
+        int total = cpuCount();
+        int cumulative = 0;
+        for (int node = 1; node <= cpus.length; node++) {
+            cumulative += cpus[node - 1].length;
+            int bound = (int) ((long) workers * cumulative / total);
+            int minimum = Math.min(workers, first[node - 1] + 1);
+            int maximum = Math.max(minimum, workers - (cpus.length - node));
+            first[node] = Math.min(Math.max(bound, minimum), maximum);
+        }
+        first[cpus.length] = workers;
+        return first;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int node = 0; node < cpus.length; node++) {
+            builder.append(node == 0 ? "" : ", ").append("node").append(node).append(": ").append(cpus[node].length).append(" CPUs");
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.function.BiConsumer;
+
+/**
+ * Per-worker table for the stations of a {@link StationDictionary}: a known name is found with one
+ * hash and one compare against the name words in the slot of the dictionary, and aggregated in that
+ * slot. Names that are not in the dictionary go to a {@link StationTable}.
+ * <p>
+ * The slots are the 64-byte ones of {@link StationTable}, with the name words of the dictionary
+ * copied in, so that the compare and the update touch a single cache line:
+ *
+ * <pre>
+ *  0 last name word      8 second-last name word    16 name length
+ * 20 min                24 max                      32 sum         40 count       48 name address
+ * </pre>
+ */
+public final class PerfectHashTable implements AggregationTable {
+
+    private static final int SLOT_SIZE = 64;
+    private static final int LAST_WORD = 0;
+    private static final int SECOND_LAST_WORD = 8;
+    private static final int LENGTH = 16;
+    private static final int MIN = 20;
+    private static final int MAX = 24;
+    private static final int SUM = 32;
+    private static final int COUNT = 40;
+    private static final int NAME = 48;
+
+    // Initial capacity of the table of the stations that are not in the dictionary.
+    private static final int FALLBACK_CAPACITY = 256;
+
+    private final StationDictionary dictionary;
+    private final MemorySegment table;
+    private final long slots;
+    private final StationTable fallback = new StationTable(FALLBACK_CAPACITY, StationTable.DEFAULT_LOAD_FACTOR);
+
+    public PerfectHashTable(StationDictionary dictionary) {
+        this.dictionary = dictionary;
+        // One more slot than names, see StationDictionary.slot().
+        this.table = Arena.ofAuto().allocate((long) (dictionary.size() + 1) * SLOT_SIZE, SLOT_SIZE);
+        this.slots = table.address();
+        long[] keys = dictionary.keys();
+        for (int i = 0; i <= dictionary.size(); i++) {
+            long slot = slots + (long) i * SLOT_SIZE;
+            int key = i * StationDictionary.KEY_SIZE;
+            Memory.putLong(slot + LAST_WORD, keys[key]);
+            Memory.putLong(slot + SECOND_LAST_WORD, keys[key + 1]);
+            Memory.putInt(slot + LENGTH, (int) keys[key + 2]);
+            Memory.putLong(slot + NAME, keys[key + 3]);
+            Memory.putInt(slot + MIN, Aggregate.MAX_TEMP);
+            Memory.putInt(slot + MAX, Aggregate.MIN_TEMP);
+        }
+    }
+
+    // Names of up to 7 bytes are the only ones without a second-last word.
+    @Override
+    public boolean tryRecord(long hash, long lastWord, int value) {
+        long slot = slots + (long) dictionary.slot(hash) * SLOT_SIZE;
+        if (Memory.getLong(slot + LAST_WORD) == lastWord && Memory.getLong(slot + SECOND_LAST_WORD) == 0) {
+            update(slot, value);
+            return true;
+        }
+        return fallback.tryRecord(hash, lastWord, value);
+    }
+
+    @Override
+    public boolean tryRecord(long hash, long lastWord, long secondLastWord, int value) {
+        long slot = slots + (long) dictionary.slot(hash) * SLOT_SIZE;
+        if (Memory.getLong(slot + LAST_WORD) == lastWord && Memory.getLong(slot + SECOND_LAST_WORD) == secondLastWord
+                && Memory.getInt(slot + LENGTH) <= StationDictionary.INLINE_LENGTH) {
+            update(slot, value);
+            return true;
+        }
+        return fallback.tryRecord(hash, lastWord, secondLastWord, value);
+    }
+
+    @Override
+    public void record(long nameAddress, int nameLength, long hash, int value) {
+        long slot = slots + (long) dictionary.slot(hash) * SLOT_SIZE;
+        if (Memory.getInt(slot + LENGTH) == nameLength && StationTable.equalNames(Memory.getLong(slot + NAME), nameAddress, nameLength)) {
+            update(slot, value);
+        }
+        else {
+            fallback.record(nameAddress, nameLength, hash, value);
+        }
+    }
+
+    private static void update(long slot, int value) {
+        if (value < Memory.getInt(slot + MIN)) {
+            Memory.putInt(slot + MIN, value);
+        }
+        if (value > Memory.getInt(slot + MAX)) {
+            Memory.putInt(slot + MAX, value);
+        }
+        Memory.putLong(slot + SUM, Memory.getLong(slot + SUM) + value);
+        Memory.putLong(slot + COUNT, Memory.getLong(slot + COUNT) + 1);
+    }
+
+    @Override
+    public void forEach(BiConsumer<byte[], Aggregate> action) {
+        for (int i = 0; i < dictionary.size(); i++) {
+            long slot = slots + (long) i * SLOT_SIZE;
+            long count = Memory.getLong(slot + COUNT);
+            if (count != 0) {
+                Aggregate aggregate = new Aggregate();
+                aggregate.add(Memory.getInt(slot + MIN), Memory.getInt(slot + MAX), Memory.getLong(slot + SUM), count);
+                action.accept(dictionary.name(i).clone(), aggregate);
+            }
+        }
+        fallback.forEach(action);
+    }
+}
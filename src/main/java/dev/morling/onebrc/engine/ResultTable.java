@@ -0,0 +1,184 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * The open-addressing table of {@code CalculateAverage_thomaswue}: an array of entries that keep
+ * the name as longs, with the last two words inlined so that short names are matched with one or
+ * two compares.
+ */
+public final class ResultTable implements AggregationTable {
+
+    public static final int DEFAULT_CAPACITY = 1 << 17;
+
+    // Holding the current result for a single city.
+    static final class Entry extends Aggregate {
+        long lastNameLong, secondLastNameLong;
+        long[] name;
+        int words;
+        int id;
+
+        byte[] nameBytes() {
+            ByteBuffer bb = ByteBuffer.allocate(name.length * Long.BYTES).order(ByteOrder.nativeOrder());
+            bb.asLongBuffer().put(name);
+            byte[] array = bb.array();
+            int i = 0;
+            while (array[i++] != ';')
+                ;
+            return Arrays.copyOf(array, i - 1);
+        }
+    }
+
+    private final Entry[] results;
+    private int size;
+
+    public ResultTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ResultTable(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        this.results = new Entry[capacity];
+    }
+
+    @Override
+    public boolean tryRecord(long hash, long lastWord, int value) {
+        Entry existingResult = find(hash, lastWord);
+        if (existingResult != null) {
+            existingResult.record(value);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean tryRecord(long hash, long lastWord, long secondLastWord, int value) {
+        Entry existingResult = find(hash, lastWord, secondLastWord);
+        if (existingResult != null) {
+            existingResult.record(value);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void record(long nameAddress, int nameLength, long hash, int value) {
+        findOrInsert(nameAddress, nameLength, hash).record(value);
+    }
+
+    // Fast path lookup of a name of up to 7 bytes, may miss for an existing name.
+    Entry find(long hash, long lastWord) {
+        Entry existingResult = results[hashToIndex(hash, results)];
+        if (existingResult != null && existingResult.lastNameLong == lastWord && existingResult.secondLastNameLong == 0) {
+            return existingResult;
+        }
+        return null;
+    }
+
+    // Fast path lookup of a name of 8 to 15 bytes, may miss for an existing name.
+    Entry find(long hash, long lastWord, long secondLastWord) {
+        Entry existingResult = results[hashToIndex(hash, results)];
+        if (existingResult != null && existingResult.lastNameLong == lastWord && existingResult.secondLastNameLong == secondLastWord
+                && existingResult.words == 2) {
+            return existingResult;
+        }
+        return null;
+    }
+
+    Entry findOrInsert(long nameAddress, int nameLength, long hash) {
+        int tableIndex = hashToIndex(hash, results);
+        // The probe step is odd, so a full table is detected after visiting every slot once.
+        int probes = 0;
+        outer: while (true) {
+            Entry existingResult = results[tableIndex];
+            if (existingResult == null || probes++ == results.length) {
+                existingResult = newEntry(nameAddress, tableIndex, nameLength);
+            }
+            // Check for collision.
+            int i = 0;
+            int namePos = 0;
+            for (; i < nameLength + 1 - 8; i += 8) {
+                if (namePos >= existingResult.name.length || existingResult.name[namePos++] != Memory.getLong(nameAddress + i)) {
+                    tableIndex = (tableIndex + 31) & (results.length - 1);
+                    continue outer;
+                }
+            }
+
+            int remainingShift = (64 - (nameLength + 1 - i) << 3);
+            if (namePos == existingResult.name.length - 1 && ((existingResult.lastNameLong ^ (Memory.getLong(nameAddress + i) << remainingShift)) == 0)) {
+                return existingResult;
+            }
+            else {
+                // Collision error, try next.
+                tableIndex = (tableIndex + 31) & (results.length - 1);
+            }
+        }
+    }
+
+    // Number of stations, entries are numbered 0 to size - 1 in insertion order.
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void forEach(BiConsumer<byte[], Aggregate> action) {
+        for (Entry r : results) {
+            if (r != null) {
+                action.accept(r.nameBytes(), r);
+            }
+        }
+    }
+
+    public static int hashToIndex(long hash, Object[] results) {
+        int hashAsInt = (int) (hash ^ (hash >>> 28));
+        int finalHash = (hashAsInt ^ (hashAsInt >>> 17));
+        return (finalHash & (results.length - 1));
+    }
+
+    private Entry newEntry(long nameAddress, int hash, int nameLength) {
+        if (size == results.length) {
+            throw new IllegalStateException("Table is full with " + size + " stations");
+        }
+        Entry r = new Entry();
+        r.id = size++;
+        results[hash] = r;
+        long[] name = new long[(nameLength / Long.BYTES) + 1];
+        int pos = 0;
+        int i = 0;
+        for (; i < nameLength + 1 - Long.BYTES; i += Long.BYTES) {
+            name[pos++] = Memory.getLong(nameAddress + i);
+        }
+
+        if (pos > 0) {
+            r.secondLastNameLong = name[pos - 1];
+        }
+
+        int remainingShift = (64 - (nameLength + 1 - i) << 3);
+        long lastWord = (Memory.getLong(nameAddress + i) << remainingShift);
+        r.lastNameLong = lastWord;
+        name[pos] = lastWord >> remainingShift;
+        r.name = name;
+        r.words = name.length;
+        return r;
+    }
+}
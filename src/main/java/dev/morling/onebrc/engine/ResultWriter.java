@@ -0,0 +1,234 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Writes {@link SortedResults} in a machine-readable format, straight from the name bytes and
+ * aggregates into a buffer that is flushed to the stream when full: temperatures are formatted from
+ * their tenths, without going through {@code double} or {@code String}.
+ * <ul>
+ * <li>{@link Format#TEXT}: {@code {name=min/mean/max, ...}}, as printed for a {@code TreeMap} of
+ * {@link Aggregate}s</li>
+ * <li>{@link Format#CSV}: one {@code name;min;mean;max} line per station, the output of
+ * {@code tocsv.sh}</li>
+ * <li>{@link Format#JSON}: {@code {"name":{"min":-1.5,"mean":2.0,"max":3.5,"count":4},...}}</li>
+ * <li>{@link Format#BINARY}: the int {@link #MAGIC} and the number of stations, then per station the
+ * name length as a short, the name, min and max in tenths as shorts, and the sum in tenths and the
+ * count as longs, all big-endian (as read by {@code DataInputStream})</li>
+ * </ul>
+ */
+public final class ResultWriter {
+
+    public enum Format {
+        TEXT,
+        CSV,
+        JSON,
+        BINARY;
+
+        public static Format of(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    public static final int MAGIC = 0x31425253; // "1BRS"
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+
+    private ResultWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Writes the results to the stream and flushes it; the stream is not closed.
+     */
+    public static void write(SortedResults results, Format format, OutputStream out) throws IOException {
+        ResultWriter writer = new ResultWriter(out);
+        switch (format) {
+            case TEXT -> writer.text(results);
+            case CSV -> writer.csv(results);
+            case JSON -> writer.json(results);
+            case BINARY -> writer.binary(results);
+        }
+        writer.flush();
+        out.flush();
+    }
+
+    private void text(SortedResults results) throws IOException {
+        put('{');
+        for (int i = 0; i < results.size(); i++) {
+            if (i > 0) {
+                put(',');
+                put(' ');
+            }
+            bytes(results.name(i));
+            put('=');
+            tenths(results.min(i));
+            put('/');
+            tenths(results.mean(i));
+            put('/');
+            tenths(results.max(i));
+        }
+        put('}');
+        put('\n');
+    }
+
+    private void csv(SortedResults results) throws IOException {
+        for (int i = 0; i < results.size(); i++) {
+            bytes(results.name(i));
+            put(';');
+            tenths(results.min(i));
+            put(';');
+            tenths(results.mean(i));
+            put(';');
+            tenths(results.max(i));
+            put('\n');
+        }
+    }
+
+    private void json(SortedResults results) throws IOException {
+        put('{');
+        for (int i = 0; i < results.size(); i++) {
+            if (i > 0) {
+                put(',');
+            }
+            put('"');
+            escaped(results.name(i));
+            ascii("\":{\"min\":");
+            tenths(results.min(i));
+            ascii(",\"mean\":");
+            tenths(results.mean(i));
+            ascii(",\"max\":");
+            tenths(results.max(i));
+            ascii(",\"count\":");
+            number(results.count(i));
+            put('}');
+        }
+        put('}');
+        put('\n');
+    }
+
+    private void binary(SortedResults results) throws IOException {
+        putInt(MAGIC);
+        putInt(results.size());
+        for (int i = 0; i < results.size(); i++) {
+            byte[] name = results.name(i);
+            putShort(name.length);
+            bytes(name);
+            putShort(results.min(i));
+            putShort(results.max(i));
+            putLong(results.sum(i));
+            putLong(results.count(i));
+        }
+    }
+
+    // A temperature in tenths of a degree as a decimal with one fractional digit, e.g. -5 as -0.5.
+    private void tenths(int tenths) throws IOException {
+        if (tenths < 0) {
+            put('-');
+            tenths = -tenths;
+        }
+        number(tenths / 10);
+        put('.');
+        put('0' + tenths % 10);
+    }
+
+    private void number(long value) throws IOException {
+        ensure(20);
+        long divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buffer[position++] = (byte) ('0' + value / divisor % 10);
+        }
+    }
+
+    // A JSON string body: quotes, backslashes and control characters are escaped, other bytes (UTF-8) are copied.
+    private void escaped(byte[] name) throws IOException {
+        for (byte b : name) {
+            if (b == '"' || b == '\\') {
+                put('\\');
+                put(b);
+            }
+            else if (b >= 0 && b < 0x20) {
+                ascii("\\u00");
+                put(HEX[b >>> 4]);
+                put(HEX[b & 0xF]);
+            }
+            else {
+                put(b);
+            }
+        }
+    }
+
+    private void ascii(String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            put(text.charAt(i));
+        }
+    }
+
+    private void bytes(byte[] bytes) throws IOException {
+        if (bytes.length > BUFFER_SIZE - position) {
+            flush();
+            if (bytes.length > BUFFER_SIZE) {
+                out.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void putShort(int value) throws IOException {
+        put(value >>> 8);
+        put(value);
+    }
+
+    private void putInt(int value) throws IOException {
+        putShort(value >>> 16);
+        putShort(value);
+    }
+
+    private void putLong(long value) throws IOException {
+        putInt((int) (value >>> 32));
+        putInt((int) value);
+    }
+
+    private void put(int b) throws IOException {
+        ensure(1);
+        buffer[position++] = (byte) b;
+    }
+
+    private void ensure(int length) throws IOException {
+        if (position + length > BUFFER_SIZE) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+}
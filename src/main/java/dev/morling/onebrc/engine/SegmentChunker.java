@@ -0,0 +1,48 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+/**
+ * Splits the input into one segment per worker, as done by {@code CalculateAverage_thomaswue}.
+ */
+public final class SegmentChunker implements Chunker {
+
+    @Override
+    public ChunkQueue split(Input input, int workers) {
+        long[] bounds = segments(input.address(), input.end(), workers);
+        boolean[] taken = new boolean[workers];
+        return (worker, chunk) -> {
+            if (taken[worker]) {
+                return false;
+            }
+            taken[worker] = true;
+            chunk.set(bounds[worker], bounds[worker + 1]);
+            return true;
+        };
+    }
+
+    // Returns count + 1 line-aligned boundaries of [start, end).
+    static long[] segments(long start, long end, int count) {
+        long segmentSize = (end - start + count - 1) / count;
+        long[] bounds = new long[count + 1];
+        bounds[0] = start;
+        for (int i = 1; i < count; ++i) {
+            bounds[i] = Chunker.alignToLine(Math.max(bounds[i - 1], start + i * segmentSize), start, end);
+        }
+        bounds[count] = end;
+        return bounds;
+    }
+}
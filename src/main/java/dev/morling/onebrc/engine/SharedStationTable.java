@@ -0,0 +1,347 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * One station dictionary shared by all workers, instead of one table per worker, after
+ * {@code CalculateAverage_richardstartin.Dictionary}. Stations are numbered in the order they are
+ * first seen; the dictionary is a lock-free open-addressing table of these ids, in which a worker
+ * claims an empty slot with a CAS, writes the name and then publishes the id. The aggregates are
+ * striped: each worker records into a {@link Stripe} of its own, dense arrays indexed by station
+ * id, so that recording needs no atomics and a worker holds no copy of the names.
+ * <p>
+ * Per-worker tables cost workers &times; stations &times; entry size, which for a million stations
+ * no longer fits in the last-level cache; here the names are stored once and a worker holds 32
+ * bytes per station. This also serves as the {@link Merger}, which adds up the stripes per station
+ * id in parallel, without hashing, and then starts a new dictionary for the next run (runs must
+ * not overlap):
+ *
+ * <pre>
+ * SharedStationTable shared = new SharedStationTable();
+ * new Engine(chunker, parser, shared::newStripe, shared, workers);
+ * </pre>
+ */
+public final class SharedStationTable implements Merger {
+
+    public static final int DEFAULT_MAX_STATIONS = 1 << 20;
+
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final VarHandle KEY_PAGES = MethodHandles.arrayElementVarHandle(long[][].class);
+    private static final VarHandle NAME_PAGES = MethodHandles.arrayElementVarHandle(byte[][][].class);
+    private static final VarHandle NAME_WORDS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final int EMPTY = 0;
+    private static final int PENDING = -1;
+
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    // Names longer than this do not fit in the two inline words.
+    private static final int INLINE_LENGTH = 15;
+
+    private final int maxStations;
+    private Dictionary dictionary;
+
+    public SharedStationTable() {
+        this(DEFAULT_MAX_STATIONS);
+    }
+
+    public SharedStationTable(int maxStations) {
+        if (maxStations < 1) {
+            throw new IllegalArgumentException("At least one station is required: " + maxStations);
+        }
+        this.maxStations = maxStations;
+        this.dictionary = new Dictionary(maxStations);
+    }
+
+    /**
+     * Returns the table of a new worker of the current run.
+     */
+    public synchronized Stripe newStripe() {
+        Stripe stripe = new Stripe(dictionary);
+        dictionary.stripes.add(stripe);
+        return stripe;
+    }
+
+    @Override
+    public SortedMap<String, Aggregate> merge(List<? extends AggregationTable> tables) {
+        Dictionary merged;
+        synchronized (this) {
+            merged = dictionary;
+            dictionary = new Dictionary(maxStations);
+        }
+        int stations = merged.size();
+        List<Stripe> stripes = merged.stripes;
+        Aggregate[] aggregates = new Aggregate[stations];
+        IntStream.range(0, (stations + PAGE_SIZE - 1) >>> PAGE_BITS).parallel().forEach(page -> {
+            int end = Math.min(stations, (page + 1) << PAGE_BITS);
+            for (int id = page << PAGE_BITS; id < end; id++) {
+                Aggregate aggregate = new Aggregate();
+                for (Stripe stripe : stripes) {
+                    stripe.addTo(id, aggregate);
+                }
+                aggregates[id] = aggregate;
+            }
+        });
+        TreeMap<String, Aggregate> result = new TreeMap<>();
+        for (int id = 0; id < stations; id++) {
+            if (aggregates[id].count > 0) {
+                result.put(new String(merged.name(id), StandardCharsets.UTF_8), aggregates[id]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The stations of one run: a table of ids, in which 0 is an empty slot, {@link #PENDING} a slot
+     * whose station is being written, and {@code id + 1} a published station. The words and length
+     * of the names are stored side by side in pages of ids allocated on demand.
+     */
+    private static final class Dictionary {
+
+        final int[] slots;
+        final int mask;
+        final int shift;
+        final int maxStations;
+        final AtomicInteger nextId = new AtomicInteger();
+        // Last word, second-last word and length of each name, and the names. A page is created
+        // before the first of its ids is published, so reading it after the slot needs no barrier.
+        final long[][] keys;
+        final byte[][][] names;
+        final List<Stripe> stripes = new ArrayList<>();
+
+        Dictionary(int maxStations) {
+            // At most half full.
+            int capacity = Integer.highestOneBit(maxStations * 2 - 1) << 1;
+            this.slots = new int[capacity];
+            this.mask = capacity - 1;
+            this.shift = 64 - Integer.numberOfTrailingZeros(capacity);
+            this.maxStations = maxStations;
+            int pages = (maxStations + PAGE_SIZE - 1) >>> PAGE_BITS;
+            this.keys = new long[pages][];
+            this.names = new byte[pages][][];
+        }
+
+        int size() {
+            return Math.min(nextId.get(), maxStations);
+        }
+
+        byte[] name(int id) {
+            return names[id >>> PAGE_BITS][id & PAGE_MASK];
+        }
+
+        // Fibonacci hashing, as in StationTable.
+        int index(long hash) {
+            return (int) ((hash * 0x9E3779B97F4A7C15L) >>> shift);
+        }
+
+        // Id of a name of up to 15 bytes, or -1 if it is not (yet) published.
+        int find(long hash, long lastWord, long secondLastWord) {
+            for (int index = index(hash);; index = (index + 1) & mask) {
+                int slot = (int) SLOTS.getAcquire(slots, index);
+                if (slot <= EMPTY) {
+                    return -1;
+                }
+                int id = slot - 1;
+                long[] page = keys[id >>> PAGE_BITS];
+                int offset = (id & PAGE_MASK) * 3;
+                if (page[offset] == lastWord && page[offset + 1] == secondLastWord && page[offset + 2] <= INLINE_LENGTH) {
+                    return id;
+                }
+            }
+        }
+
+        int findOrInsert(long nameAddress, int nameLength, long hash, long lastWord, long secondLastWord) {
+            for (int index = index(hash);; index = (index + 1) & mask) {
+                int slot = (int) SLOTS.getAcquire(slots, index);
+                if (slot == EMPTY) {
+                    if (!SLOTS.compareAndSet(slots, index, EMPTY, PENDING)) {
+                        // Lost the race for this slot, look at what was put there.
+                        index = (index - 1) & mask;
+                        continue;
+                    }
+                    int id = nextId.getAndIncrement();
+                    if (id >= maxStations) {
+                        SLOTS.setRelease(slots, index, EMPTY);
+                        throw new IllegalStateException("Shared table is full with " + maxStations + " stations");
+                    }
+                    long[] page = page(KEY_PAGES, keys, id, () -> new long[PAGE_SIZE * 3]);
+                    int offset = (id & PAGE_MASK) * 3;
+                    page[offset] = lastWord;
+                    page[offset + 1] = secondLastWord;
+                    page[offset + 2] = nameLength;
+                    page(NAME_PAGES, names, id, () -> new byte[PAGE_SIZE][])[id & PAGE_MASK] = Memory.copy(nameAddress, nameLength);
+                    SLOTS.setRelease(slots, index, id + 1);
+                    return id;
+                }
+                if (slot == PENDING) {
+                    // Another worker is writing this station, wait for it.
+                    Thread.onSpinWait();
+                    index = (index - 1) & mask;
+                    continue;
+                }
+                int id = slot - 1;
+                if (nameLength <= INLINE_LENGTH ? equalWords(id, lastWord, secondLastWord, nameLength) : equalName(name(id), nameAddress, nameLength)) {
+                    return id;
+                }
+            }
+        }
+
+        private boolean equalWords(int id, long lastWord, long secondLastWord, int nameLength) {
+            long[] page = keys[id >>> PAGE_BITS];
+            int offset = (id & PAGE_MASK) * 3;
+            return page[offset] == lastWord && page[offset + 1] == secondLastWord && page[offset + 2] == nameLength;
+        }
+
+        // Returns the page of the id, allocating it if this is the first id of the page.
+        @SuppressWarnings("unchecked")
+        private static <T> T page(VarHandle handle, T[] pages, int id, Supplier<T> allocator) {
+            int index = id >>> PAGE_BITS;
+            T page = (T) handle.getAcquire(pages, index);
+            if (page == null) {
+                handle.compareAndSet(pages, index, null, allocator.get());
+                page = (T) handle.getAcquire(pages, index);
+            }
+            return page;
+        }
+
+        // Long names are compared with their copy only, which saves a cache miss on the words.
+        private static boolean equalName(byte[] name, long address, int length) {
+            if (name.length != length) {
+                return false;
+            }
+            int i = 0;
+            for (; i + Long.BYTES <= name.length; i += Long.BYTES) {
+                if ((long) NAME_WORDS.get(name, i) != Memory.getLong(address + i)) {
+                    return false;
+                }
+            }
+            for (; i < name.length; i++) {
+                if (name[i] != Memory.getByte(address + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The aggregates recorded by one worker: min, max, sum and count per station id, in pages
+     * allocated on demand. Only its worker writes to it, the merge reads it once the run is done.
+     */
+    public static final class Stripe implements AggregationTable {
+
+        private final Dictionary dictionary;
+        private long[][] pages = new long[0][];
+
+        private Stripe(Dictionary dictionary) {
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        public boolean tryRecord(long hash, long lastWord, int value) {
+            return tryRecord(hash, lastWord, 0, value);
+        }
+
+        @Override
+        public boolean tryRecord(long hash, long lastWord, long secondLastWord, int value) {
+            int id = dictionary.find(hash, lastWord, secondLastWord);
+            if (id < 0) {
+                return false;
+            }
+            update(id, value);
+            return true;
+        }
+
+        @Override
+        public void record(long nameAddress, int nameLength, long hash, int value) {
+            // The last two words as the parser produces them.
+            int i = 0;
+            long secondLastWord = 0;
+            for (; i < nameLength + 1 - Long.BYTES; i += Long.BYTES) {
+                secondLastWord = Memory.getLong(nameAddress + i);
+            }
+            int remainingShift = (64 - (nameLength + 1 - i) << 3);
+            long lastWord = Memory.getLong(nameAddress + i) << remainingShift;
+            update(dictionary.findOrInsert(nameAddress, nameLength, hash, lastWord, secondLastWord), value);
+        }
+
+        private void update(int id, int value) {
+            int page = id >>> PAGE_BITS;
+            if (page >= pages.length || pages[page] == null) {
+                allocate(page);
+            }
+            long[] values = pages[page];
+            int offset = (id & PAGE_MASK) << 2;
+            values[offset] = Math.min(values[offset], value);
+            values[offset + 1] = Math.max(values[offset + 1], value);
+            values[offset + 2] += value;
+            values[offset + 3]++;
+        }
+
+        private void allocate(int page) {
+            if (page >= pages.length) {
+                pages = Arrays.copyOf(pages, Math.max(page + 1, pages.length * 2));
+            }
+            long[] values = new long[PAGE_SIZE << 2];
+            for (int offset = 0; offset < values.length; offset += 4) {
+                values[offset] = Aggregate.MAX_TEMP;
+                values[offset + 1] = Aggregate.MIN_TEMP;
+            }
+            pages[page] = values;
+        }
+
+        void addTo(int id, Aggregate aggregate) {
+            int page = id >>> PAGE_BITS;
+            if (page < pages.length && pages[page] != null) {
+                long[] values = pages[page];
+                int offset = (id & PAGE_MASK) << 2;
+                if (values[offset + 3] > 0) {
+                    aggregate.add((int) values[offset], (int) values[offset + 1], values[offset + 2], values[offset + 3]);
+                }
+            }
+        }
+
+        /**
+         * Passes the stations recorded by this worker; the merge of {@link SharedStationTable} does
+         * not need it.
+         */
+        @Override
+        public void forEach(BiConsumer<byte[], Aggregate> action) {
+            for (int id = 0; id < dictionary.size(); id++) {
+                Aggregate aggregate = new Aggregate();
+                addTo(id, aggregate);
+                if (aggregate.count > 0) {
+                    action.accept(dictionary.name(id), aggregate);
+                }
+            }
+        }
+    }
+}
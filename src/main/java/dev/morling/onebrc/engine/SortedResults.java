@@ -0,0 +1,287 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.stream.IntStream;
+
+/**
+ * The merged result of a run as flat arrays of UTF-8 names and aggregates, sorted by name, for the
+ * {@link ResultWriter}s: unlike the {@link Merger}s, no {@code String} or map entry is created per
+ * station, and the merge and the sort run on all cores.
+ * <p>
+ * Each table is collected and sorted into a partial result, then the partials are merged by a
+ * tree reduction: pairwise, as sorted runs, all pairs of a level in parallel, on the common pool
+ * that the workers of {@link Engine#process} ran on. Unlike merging into a hash table, this reads
+ * and writes the stations in order, which matters once they no longer fit in the caches.
+ * <p>
+ * The names are sorted by their bytes: a counting sort on the first two bytes, then each of these
+ * buckets in parallel with {@link Arrays#sort(long[])} on keys that pack the next bytes of a name
+ * above its index, names that share these bytes being sorted again on the bytes after. The lead
+ * bytes of the UTF-8 sequences of {@code U+E000} to {@code U+FFFF} are ranked after those of the
+ * supplementary characters, so that the order is the UTF-16 one of {@code TreeMap<String, ?>}
+ * rather than the code point one.
+ */
+public final class SortedResults {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int BUCKET_BYTES = 2;
+
+    private byte[][] names;
+    private int[] mins;
+    private int[] maxs;
+    private long[] sums;
+    private long[] counts;
+    private int size;
+
+    private SortedResults(int capacity) {
+        names = new byte[capacity][];
+        mins = new int[capacity];
+        maxs = new int[capacity];
+        sums = new long[capacity];
+        counts = new long[capacity];
+    }
+
+    /**
+     * Merges the stations of the tables, as a {@link Merger} would, and sorts them.
+     */
+    public static SortedResults merge(List<? extends AggregationTable> tables) {
+        SortedResults[] partials = tables.parallelStream().map(SortedResults::collect).toArray(SortedResults[]::new);
+        for (int step = 1; step < partials.length; step *= 2) {
+            int distance = step;
+            IntStream.range(0, (partials.length + 2 * step - 1) / (2 * step)).parallel().forEach(pair -> {
+                int into = pair * 2 * distance;
+                if (into + distance < partials.length) {
+                    partials[into] = merge(partials[into], partials[into + distance]);
+                    partials[into + distance] = null;
+                }
+            });
+        }
+        return partials.length > 0 ? partials[0] : new SortedResults(0);
+    }
+
+    /**
+     * The results of a {@link Merger}, in the order of the map.
+     */
+    public static SortedResults of(SortedMap<String, ? extends Aggregate> results) {
+        SortedResults sorted = new SortedResults(results.size());
+        for (Map.Entry<String, ? extends Aggregate> entry : results.entrySet()) {
+            Aggregate aggregate = entry.getValue();
+            sorted.append(entry.getKey().getBytes(StandardCharsets.UTF_8), aggregate.min, aggregate.max, aggregate.sum, aggregate.count);
+        }
+        return sorted;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte[] name(int station) {
+        return names[station];
+    }
+
+    public int min(int station) {
+        return mins[station];
+    }
+
+    public int max(int station) {
+        return maxs[station];
+    }
+
+    public long sum(int station) {
+        return sums[station];
+    }
+
+    public long count(int station) {
+        return counts[station];
+    }
+
+    /**
+     * The mean in tenths of a degree, rounded as by {@link Aggregate#toString()}.
+     */
+    public int mean(int station) {
+        return (int) Math.round((((double) sums[station]) / 10.0) / counts[station] * 10.0);
+    }
+
+    private static SortedResults collect(AggregationTable table) {
+        SortedResults partial = new SortedResults(INITIAL_CAPACITY);
+        table.forEach((name, aggregate) -> {
+            if (partial.size == partial.names.length) {
+                partial.grow();
+            }
+            partial.append(name, aggregate.min, aggregate.max, aggregate.sum, aggregate.count);
+        });
+        partial.sort();
+        return partial;
+    }
+
+    // Merges two sorted results into a new one, adding up the stations they share.
+    private static SortedResults merge(SortedResults left, SortedResults right) {
+        SortedResults merged = new SortedResults(left.size + right.size);
+        int l = 0;
+        int r = 0;
+        while (l < left.size && r < right.size) {
+            int order = compare(left.names[l], right.names[r]);
+            if (order < 0) {
+                merged.append(left, l++);
+            }
+            else if (order > 0) {
+                merged.append(right, r++);
+            }
+            else {
+                merged.append(left, l++);
+                merged.add(merged.size - 1, right, r++);
+            }
+        }
+        while (l < left.size) {
+            merged.append(left, l++);
+        }
+        while (r < right.size) {
+            merged.append(right, r++);
+        }
+        return merged;
+    }
+
+    // The order of the names as sorted by sort().
+    private static int compare(byte[] left, byte[] right) {
+        int mismatch = Arrays.mismatch(left, right);
+        if (mismatch < 0) {
+            return 0;
+        }
+        if (mismatch == left.length || mismatch == right.length) {
+            return left.length - right.length;
+        }
+        return rank(left[mismatch]) - rank(right[mismatch]);
+    }
+
+    private void append(SortedResults from, int station) {
+        append(from.names[station], from.mins[station], from.maxs[station], from.sums[station], from.counts[station]);
+    }
+
+    private void append(byte[] name, int min, int max, long sum, long count) {
+        names[size] = name;
+        mins[size] = min;
+        maxs[size] = max;
+        sums[size] = sum;
+        counts[size] = count;
+        size++;
+    }
+
+    private void add(int station, SortedResults from, int other) {
+        mins[station] = Math.min(mins[station], from.mins[other]);
+        maxs[station] = Math.max(maxs[station], from.maxs[other]);
+        sums[station] += from.sums[other];
+        counts[station] += from.counts[other];
+    }
+
+    private void grow() {
+        int capacity = names.length * 2;
+        names = Arrays.copyOf(names, capacity);
+        mins = Arrays.copyOf(mins, capacity);
+        maxs = Arrays.copyOf(maxs, capacity);
+        sums = Arrays.copyOf(sums, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+    }
+
+    private void sort() {
+        // Counting sort on the first bytes, so that the buckets can be sorted in parallel.
+        int[] starts = new int[(1 << (BUCKET_BYTES * 8)) + 1];
+        int[] buckets = new int[size];
+        for (int station = 0; station < size; station++) {
+            buckets[station] = (int) (prefix(names[station], 0, BUCKET_BYTES) >>> (64 - BUCKET_BYTES * 8));
+            starts[buckets[station] + 1]++;
+        }
+        for (int bucket = 1; bucket < starts.length; bucket++) {
+            starts[bucket] += starts[bucket - 1];
+        }
+        int[] order = new int[size];
+        int[] next = Arrays.copyOf(starts, starts.length - 1);
+        for (int station = 0; station < size; station++) {
+            order[next[buckets[station]]++] = station;
+        }
+
+        long[] keys = new long[size];
+        int[] scratch = new int[size];
+        IntStream.range(0, starts.length - 1).parallel().filter(bucket -> starts[bucket + 1] - starts[bucket] > 1)
+                .forEach(bucket -> sort(order, starts[bucket], starts[bucket + 1], BUCKET_BYTES, keys, scratch));
+
+        byte[][] sortedNames = new byte[size][];
+        int[] sortedMins = new int[size];
+        int[] sortedMaxs = new int[size];
+        long[] sortedSums = new long[size];
+        long[] sortedCounts = new long[size];
+        IntStream.range(0, size).parallel().forEach(i -> {
+            int station = order[i];
+            sortedNames[i] = names[station];
+            sortedMins[i] = mins[station];
+            sortedMaxs[i] = maxs[station];
+            sortedSums[i] = sums[station];
+            sortedCounts[i] = counts[station];
+        });
+        names = sortedNames;
+        mins = sortedMins;
+        maxs = sortedMaxs;
+        sums = sortedSums;
+        counts = sortedCounts;
+    }
+
+    // Sorts order[from, to) by the names from their byte at offset on, assuming equal bytes before.
+    private void sort(int[] order, int from, int to, int offset, long[] keys, int[] scratch) {
+        int indexBits = 64 - Long.numberOfLeadingZeros(Math.max(to - from - 1, 1));
+        int prefixBytes = (64 - indexBits) >>> 3;
+        for (int i = from; i < to; i++) {
+            // The sign flip makes the signed sort order the unsigned one.
+            keys[i] = (prefix(names[order[i]], offset, prefixBytes) | (i - from)) ^ Long.MIN_VALUE;
+        }
+        Arrays.sort(keys, from, to);
+        System.arraycopy(order, from, scratch, from, to - from);
+        long indexMask = (1L << indexBits) - 1;
+        for (int i = from; i < to; i++) {
+            order[i] = scratch[from + (int) (keys[i] & indexMask)];
+        }
+        // Runs of names with the same prefix; as the names are distinct, the recursion ends.
+        int run = from;
+        for (int i = from + 1; i <= to; i++) {
+            if (i == to || (keys[i] & ~indexMask) != (keys[run] & ~indexMask)) {
+                if (i - run > 1) {
+                    sort(order, run, i, offset + prefixBytes, keys, scratch);
+                }
+                run = i;
+            }
+        }
+    }
+
+    // The bytes [offset, offset + length) of the name, zero-padded and ranked, in the most significant bytes.
+    private static long prefix(byte[] name, int offset, int length) {
+        long prefix = 0;
+        for (int i = 0; i < length; i++) {
+            int index = offset + i;
+            prefix = (prefix << 8) | (index < name.length ? rank(name[index]) : 0);
+        }
+        return prefix << ((8 - length) << 3);
+    }
+
+    // The unsigned byte, with the lead bytes 0xEE and 0xEF (U+E000 to U+FFFF) moved after those of
+    // the supplementary characters (0xF0 to 0xF4), as their UTF-16 code units are after the surrogates.
+    private static int rank(byte b) {
+        int unsigned = b & 0xFF;
+        return unsigned == 0xEE || unsigned == 0xEF ? unsigned + 0x10 : unsigned;
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A minimal perfect hash over a known set of station names, the idea of
+ * {@code PerfectHashSearch_hundredwatt} applied to the names instead of the temperatures: each of
+ * the {@code n} names gets its own slot in {@code [0, n)}, so that a lookup is one hash and one
+ * compare against the name stored in the slot, without probing. Names outside the set also land on
+ * some slot, and fail that compare.
+ * <p>
+ * A single seed that is collision-free for tens of thousands of names does not exist in practice, so
+ * the search is the hash-and-displace one (CHD, PTHash): the names are split by their hash into a
+ * power of two of partitions of up to about {@value #PARTITION_SIZE} names (so that the partition
+ * is a shift of the hash), each partition into {@value #BUCKETS} buckets, and a seed is searched per
+ * bucket, the largest buckets first, that sends all its names to free slots of the partition. The
+ * partitions are independent, so they are searched in parallel.
+ * <p>
+ * The hash is the one of {@link AggregationTable}, the xor of the name words of the parser, so two
+ * names with the same hash cannot be told apart; the second one is left out of the dictionary.
+ * <p>
+ * Binary format (big-endian): magic, version, name count {@code n}, partition count {@code p}, then
+ * the {@code p + 1} partition offsets, the {@code p * BUCKETS} 16-bit seeds, and the {@code n} names, in
+ * slot order, as a length and the UTF-8 bytes.
+ */
+public final class StationDictionary {
+
+    static final int PARTITION_SIZE = 1024;
+    static final int BUCKET_BITS = 8;
+    static final int BUCKETS = 1 << BUCKET_BITS;
+
+    private static final int MAGIC = 0x31504846; // "1PHF"
+    private static final int VERSION = 1;
+
+    // Seeds tried per bucket before giving up. Seeds are 16-bit so that the seeds of all buckets
+    // take little cache; the last buckets of a partition, which have few free slots left, need the
+    // most tries, a few thousand.
+    private static final int MAX_SEED = 1 << 16;
+
+    // Names longer than this do not fit in the two inline words.
+    static final int INLINE_LENGTH = 15;
+
+    // Longs per slot in keys().
+    static final int KEY_SIZE = 4;
+
+    // Per partition: the first slot, the last entry is the number of names.
+    private final int[] offsets;
+    private final int partitionBits;
+    private final char[] seeds;
+    private final byte[][] names;
+
+    // Per slot: the last word, the second-last word, the length and the address of the name. There
+    // is one slot past the names, which matches no name, for the hashes that fall on an empty last
+    // partition.
+    private final long[] keys;
+    private final MemorySegment nameData;
+
+    private StationDictionary(int[] offsets, char[] seeds, byte[][] names) {
+        this.offsets = offsets;
+        this.partitionBits = Integer.numberOfTrailingZeros(offsets.length - 1);
+        this.seeds = seeds;
+        this.names = names;
+        this.keys = new long[(names.length + 1) * KEY_SIZE];
+        this.nameData = Arena.ofAuto().allocate(Math.max(1, Arrays.stream(names).mapToLong(name -> name.length).sum()), Long.BYTES);
+        long address = nameData.address();
+        for (int slot = 0; slot < names.length; slot++) {
+            long[] words = words(names[slot]);
+            keys[slot * KEY_SIZE] = words[0];
+            keys[slot * KEY_SIZE + 1] = words[1];
+            keys[slot * KEY_SIZE + 2] = names[slot].length;
+            keys[slot * KEY_SIZE + 3] = address;
+            MemorySegment.copy(names[slot], 0, nameData, ValueLayout.JAVA_BYTE, address - nameData.address(), names[slot].length);
+            address += names[slot].length;
+        }
+        keys[names.length * KEY_SIZE + 2] = -1;
+    }
+
+    /**
+     * Builds the dictionary of the given UTF-8 names, searching the partitions on the given number of
+     * threads. Duplicates are ignored.
+     */
+    public static StationDictionary build(Collection<byte[]> names, int threads) throws InterruptedException {
+        // Distinct names by hash, in their original order.
+        Map<Long, byte[]> byHash = new LinkedHashMap<>();
+        for (byte[] name : names) {
+            byHash.putIfAbsent(words(name)[2], name);
+        }
+        byte[][] distinct = byHash.values().toArray(new byte[0][]);
+        long[] hashes = new long[distinct.length];
+        for (int i = 0; i < distinct.length; i++) {
+            hashes[i] = mix(words(distinct[i])[2]);
+        }
+
+        int partitionBits = 32 - Integer.numberOfLeadingZeros(Math.max(0, (distinct.length - 1) / PARTITION_SIZE));
+        int partitions = 1 << partitionBits;
+        List<List<Integer>> members = new ArrayList<>();
+        for (int p = 0; p < partitions; p++) {
+            members.add(new ArrayList<>());
+        }
+        for (int i = 0; i < distinct.length; i++) {
+            members.get(partition(hashes[i], partitionBits)).add(i);
+        }
+        int[] offsets = new int[partitions + 1];
+        for (int p = 0; p < partitions; p++) {
+            offsets[p + 1] = offsets[p] + members.get(p).size();
+        }
+
+        char[] seeds = new char[partitions * BUCKETS];
+        byte[][] slots = new byte[distinct.length][];
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> searches = new ArrayList<>();
+            for (int p = 0; p < partitions; p++) {
+                int partition = p;
+                searches.add(executor.submit(() -> search(partition, partitionBits, members.get(partition), hashes, distinct, offsets, seeds, slots)));
+            }
+            for (Future<?> search : searches) {
+                search.get();
+            }
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException("Search failed", e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        return new StationDictionary(offsets, seeds, slots);
+    }
+
+    // Finds the seeds of the buckets of one partition and places its names in their slots.
+    private static void search(int partition, int partitionBits, List<Integer> members, long[] hashes, byte[][] names, int[] offsets, char[] seeds, byte[][] slots) {
+        int size = members.size();
+        List<List<Integer>> buckets = new ArrayList<>();
+        for (int b = 0; b < BUCKETS; b++) {
+            buckets.add(new ArrayList<>());
+        }
+        for (int member : members) {
+            buckets.get(bucket(hashes[member], partitionBits)).add(member);
+        }
+        Integer[] order = new Integer[BUCKETS];
+        for (int b = 0; b < BUCKETS; b++) {
+            order[b] = b;
+        }
+        Arrays.sort(order, (a, b) -> buckets.get(b).size() - buckets.get(a).size());
+
+        boolean[] taken = new boolean[size];
+        int[] positions = new int[size];
+        for (int b : order) {
+            List<Integer> bucket = buckets.get(b);
+            if (bucket.isEmpty()) {
+                break;
+            }
+            int seed = 0;
+            while (!fits(bucket, hashes, seed, size, taken, positions)) {
+                if (++seed == MAX_SEED) {
+                    throw new IllegalStateException("No seed found for a bucket of " + bucket.size() + " names in partition " + partition);
+                }
+            }
+            seeds[partition * BUCKETS + b] = (char) seed;
+            for (int i = 0; i < bucket.size(); i++) {
+                taken[positions[i]] = true;
+                slots[offsets[partition] + positions[i]] = names[bucket.get(i)];
+            }
+        }
+    }
+
+    // Whether the seed sends all names of the bucket to distinct free slots, which it leaves in positions.
+    private static boolean fits(List<Integer> bucket, long[] hashes, int seed, int size, boolean[] taken, int[] positions) {
+        for (int i = 0; i < bucket.size(); i++) {
+            int position = position(hashes[bucket.get(i)], seed, size);
+            if (taken[position]) {
+                return false;
+            }
+            for (int j = 0; j < i; j++) {
+                if (positions[j] == position) {
+                    return false;
+                }
+            }
+            positions[i] = position;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the slot of the name with the given hash, if it is in the dictionary. Any other name
+     * gets an arbitrary slot, in {@code [0, size()]}.
+     */
+    public int slot(long hash) {
+        long h = mix(hash);
+        int partition = partition(h, partitionBits);
+        int offset = offsets[partition];
+        return offset + position(h, seeds[partition * BUCKETS + bucket(h, partitionBits)], offsets[partition + 1] - offset);
+    }
+
+    // The name words often have their low bytes zero, which only reach the high bits of the
+    // product, so the partition and the bucket are both taken from there.
+    private static long mix(long hash) {
+        return hash * 0x9E3779B97F4A7C15L;
+    }
+
+    private static int partition(long h, int partitionBits) {
+        return (int) (h >>> 32 >>> (32 - partitionBits));
+    }
+
+    private static int bucket(long h, int partitionBits) {
+        return (int) (h >>> (64 - BUCKET_BITS - partitionBits)) & (BUCKETS - 1);
+    }
+
+    private static int position(long h, int seed, int size) {
+        long x = (h ^ seed * 0xC2B2AE3D27D4EB4FL) * 0xD6E8FEB86659FD93L;
+        return (int) (((x >>> 32) * size) >>> 32);
+    }
+
+    /**
+     * The last word, the second-last word and the hash of a name, as {@link SwarLineParser} computes
+     * them when the name is followed by the {@code ';'} delimiter.
+     */
+    static long[] words(byte[] name) {
+        ByteBuffer buffer = ByteBuffer.allocate((name.length + 1 + 7) & ~7).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(name).put((byte) ';');
+        int last = name.length / Long.BYTES;
+        long hash = 0;
+        long secondLastWord = 0;
+        for (int i = 0; i < last; i++) {
+            secondLastWord = buffer.getLong(i * Long.BYTES);
+            hash ^= secondLastWord;
+        }
+        long lastWord = SwarLineParser.mask(buffer.getLong(last * Long.BYTES), name.length % Long.BYTES);
+        return new long[]{ lastWord, secondLastWord, hash ^ lastWord };
+    }
+
+    // Number of names.
+    public int size() {
+        return names.length;
+    }
+
+    // The per-slot key words, see the constructor.
+    long[] keys() {
+        return keys;
+    }
+
+    byte[] name(int slot) {
+        return names[slot];
+    }
+
+    public static StationDictionary read(Path file) throws IOException {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a station dictionary: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported station dictionary version " + version + ": " + file);
+            }
+            byte[][] names = new byte[in.readInt()][];
+            int partitions = in.readInt();
+            if (Integer.bitCount(partitions) != 1) {
+                throw new IOException("Partition count is not a power of two: " + partitions);
+            }
+            int[] offsets = new int[partitions + 1];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = in.readInt();
+            }
+            char[] seeds = new char[(offsets.length - 1) * BUCKETS];
+            for (int i = 0; i < seeds.length; i++) {
+                seeds[i] = in.readChar();
+            }
+            for (int i = 0; i < names.length; i++) {
+                names[i] = in.readNBytes(in.readUnsignedShort());
+            }
+            return new StationDictionary(offsets, seeds, names);
+        }
+    }
+
+    public void write(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(names.length);
+            out.writeInt(offsets.length - 1);
+            for (int offset : offsets) {
+                out.writeInt(offset);
+            }
+            for (char seed : seeds) {
+                out.writeChar(seed);
+            }
+            for (byte[] name : names) {
+                out.writeShort(name.length);
+                out.write(name);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * An off-heap aggregation table with one 64-byte slot (a cache line) per station, the common form
+ * of the hand-rolled tables of jerrinot, linl33, artsiomkorzun and merykitty:
+ *
+ * <pre>
+ *  0 last name word      8 second-last name word    16 hash       24 name address
+ * 32 name length        36 min     40 max     44 id       48 sum        56 count
+ * </pre>
+ *
+ * The name words are the ones of {@link AggregationTable}, so names of up to 15 bytes are matched
+ * inline with two compares; longer names also compare the bytes stored out of line. Collisions are
+ * resolved by linear probing. Stations are numbered in insertion order, for tables that keep more
+ * per station alongside (see {@link HistogramTable}).
+ * <p>
+ * There is no limit on the number of stations: once the table is filled beyond its load factor,
+ * new stations go to a table of twice the capacity, and the stations of the old table are moved
+ * over incrementally, a batch of slots at every insertion and at every hit in the old table, so
+ * that no single line pays for a full rehash. Until then, lookups that miss in the new table probe
+ * the old one. Moved slots are left in the old table, as clearing them would cut its probe
+ * sequences; they are never found there, since their station is found in the new table first.
+ */
+public final class StationTable implements AggregationTable {
+
+    public static final int DEFAULT_CAPACITY = 1 << 14;
+    public static final float DEFAULT_LOAD_FACTOR = 0.5f;
+
+    private static final int SLOT_SIZE = 64;
+    private static final int LAST_WORD = 0;
+    private static final int SECOND_LAST_WORD = 8;
+    private static final int HASH = 16;
+    private static final int NAME = 24;
+    private static final int LENGTH = 32;
+    private static final int MIN = 36;
+    private static final int MAX = 40;
+    private static final int ID = 44;
+    private static final int SUM = 48;
+    private static final int COUNT = 56;
+
+    // Names longer than this do not fit in the two inline words.
+    private static final int INLINE_LENGTH = 15;
+    private static final int NAME_BLOCK_SIZE = 64 * 1024;
+
+    // Old slots moved per step; the old table has half the capacity of the new one, so moving at
+    // least two slots per insertion empties it before the new one is full.
+    private static final int MIGRATION_BATCH = 16;
+
+    private final float loadFactor;
+    private int size;
+    private int threshold;
+    // The station of the last recorded measurement.
+    private int lastId;
+
+    private MemorySegment table;
+    private long slots;
+    private int mask;
+    private int shift;
+
+    // The table being moved into the current one, if any, and the next slot to move.
+    private MemorySegment oldTable;
+    private long oldSlots;
+    private int oldMask;
+    private int oldShift;
+    private int migrated;
+
+    // The out-of-line copies of the names, kept reachable for their arenas.
+    private final List<MemorySegment> blocks = new ArrayList<>();
+    private long nameBlock;
+    private long nameBlockEnd;
+
+    public StationTable() {
+        this(DEFAULT_CAPACITY, DEFAULT_LOAD_FACTOR);
+    }
+
+    public StationTable(int capacity, float loadFactor) {
+        if (Integer.bitCount(capacity) != 1 || capacity < 2) {
+            throw new IllegalArgumentException("Capacity must be a power of two of at least 2: " + capacity);
+        }
+        if (!(loadFactor > 0 && loadFactor < 1)) {
+            throw new IllegalArgumentException("Load factor must be between 0 and 1: " + loadFactor);
+        }
+        this.loadFactor = loadFactor;
+        allocate(capacity);
+    }
+
+    // Names of up to 7 bytes are the only ones without a second-last word.
+    @Override
+    public boolean tryRecord(long hash, long lastWord, int value) {
+        for (int index = index(hash, shift);; index = (index + 1) & mask) {
+            long slot = slots + (long) index * SLOT_SIZE;
+            if (Memory.getInt(slot + LENGTH) == 0) {
+                return oldTable != null && tryRecord(hash, lastWord, 0, value);
+            }
+            if (Memory.getLong(slot + LAST_WORD) == lastWord && Memory.getLong(slot + SECOND_LAST_WORD) == 0) {
+                update(slot, value);
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public boolean tryRecord(long hash, long lastWord, long secondLastWord, int value) {
+        long slot = findInline(slots, mask, index(hash, shift), lastWord, secondLastWord);
+        if (slot == 0) {
+            if (oldTable == null) {
+                return false;
+            }
+            slot = findInline(oldSlots, oldMask, index(hash, oldShift), lastWord, secondLastWord);
+            if (slot == 0) {
+                return false;
+            }
+            update(slot, value);
+            migrate(MIGRATION_BATCH);
+            return true;
+        }
+        update(slot, value);
+        return true;
+    }
+
+    private static long findInline(long slots, int mask, int index, long lastWord, long secondLastWord) {
+        for (;; index = (index + 1) & mask) {
+            long slot = slots + (long) index * SLOT_SIZE;
+            int length = Memory.getInt(slot + LENGTH);
+            if (length == 0) {
+                return 0;
+            }
+            if (Memory.getLong(slot + LAST_WORD) == lastWord && Memory.getLong(slot + SECOND_LAST_WORD) == secondLastWord && length <= INLINE_LENGTH) {
+                return slot;
+            }
+        }
+    }
+
+    @Override
+    public void record(long nameAddress, int nameLength, long hash, int value) {
+        // The last two words as the parser produces them.
+        int i = 0;
+        long secondLastWord = 0;
+        for (; i < nameLength + 1 - Long.BYTES; i += Long.BYTES) {
+            secondLastWord = Memory.getLong(nameAddress + i);
+        }
+        int remainingShift = (64 - (nameLength + 1 - i) << 3);
+        long lastWord = Memory.getLong(nameAddress + i) << remainingShift;
+
+        long slot = find(slots, mask, index(hash, shift), nameAddress, nameLength, lastWord, secondLastWord);
+        if (slot == 0 && oldTable != null) {
+            slot = find(oldSlots, oldMask, index(hash, oldShift), nameAddress, nameLength, lastWord, secondLastWord);
+            if (slot != 0) {
+                update(slot, value);
+                migrate(MIGRATION_BATCH);
+                return;
+            }
+        }
+        if (slot == 0) {
+            slot = insert(nameAddress, nameLength, hash, lastWord, secondLastWord);
+        }
+        update(slot, value);
+    }
+
+    private static long find(long slots, int mask, int index, long nameAddress, int nameLength, long lastWord, long secondLastWord) {
+        for (;; index = (index + 1) & mask) {
+            long slot = slots + (long) index * SLOT_SIZE;
+            int length = Memory.getInt(slot + LENGTH);
+            if (length == 0) {
+                return 0;
+            }
+            if (length == nameLength && Memory.getLong(slot + LAST_WORD) == lastWord && Memory.getLong(slot + SECOND_LAST_WORD) == secondLastWord
+                    && (nameLength <= INLINE_LENGTH || equalNames(Memory.getLong(slot + NAME), nameAddress, nameLength))) {
+                return slot;
+            }
+        }
+    }
+
+    private long insert(long nameAddress, int nameLength, long hash, long lastWord, long secondLastWord) {
+        if (size + 1 > threshold) {
+            grow();
+        }
+        long slot = freeSlot(hash);
+        Memory.putLong(slot + LAST_WORD, lastWord);
+        Memory.putLong(slot + SECOND_LAST_WORD, secondLastWord);
+        Memory.putLong(slot + HASH, hash);
+        Memory.putLong(slot + NAME, copyName(nameAddress, nameLength));
+        Memory.putInt(slot + LENGTH, nameLength);
+        Memory.putInt(slot + MIN, Aggregate.MAX_TEMP);
+        Memory.putInt(slot + MAX, Aggregate.MIN_TEMP);
+        Memory.putInt(slot + ID, size);
+        size++;
+        if (oldTable != null) {
+            migrate(MIGRATION_BATCH);
+        }
+        return slot;
+    }
+
+    // The first empty slot of the probe sequence of the hash in the current table.
+    private long freeSlot(long hash) {
+        for (int index = index(hash, shift);; index = (index + 1) & mask) {
+            long slot = slots + (long) index * SLOT_SIZE;
+            if (Memory.getInt(slot + LENGTH) == 0) {
+                return slot;
+            }
+        }
+    }
+
+    private void update(long slot, int value) {
+        lastId = Memory.getInt(slot + ID);
+        if (value < Memory.getInt(slot + MIN)) {
+            Memory.putInt(slot + MIN, value);
+        }
+        if (value > Memory.getInt(slot + MAX)) {
+            Memory.putInt(slot + MAX, value);
+        }
+        Memory.putLong(slot + SUM, Memory.getLong(slot + SUM) + value);
+        Memory.putLong(slot + COUNT, Memory.getLong(slot + COUNT) + 1);
+    }
+
+    static boolean equalNames(long a, long b, int length) {
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            if (Memory.getLong(a + i) != Memory.getLong(b + i)) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (Memory.getByte(a + i) != Memory.getByte(b + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long copyName(long nameAddress, int nameLength) {
+        if (nameBlockEnd - nameBlock < nameLength) {
+            var block = Arena.ofAuto().allocate(Math.max(NAME_BLOCK_SIZE, nameLength), Long.BYTES);
+            blocks.add(block);
+            nameBlock = block.address();
+            nameBlockEnd = nameBlock + block.byteSize();
+        }
+        long address = nameBlock;
+        Memory.copy(nameAddress, address, nameLength);
+        nameBlock += nameLength;
+        return address;
+    }
+
+    // Starts moving the stations into a table of twice the capacity.
+    private void grow() {
+        if (oldTable != null) {
+            migrate(oldMask + 1);
+        }
+        oldTable = table;
+        oldSlots = slots;
+        oldMask = mask;
+        oldShift = shift;
+        migrated = 0;
+        allocate((mask + 1) * 2);
+    }
+
+    // Moves up to count slots of the old table, and drops it once all have been moved.
+    private void migrate(int count) {
+        int end = Math.min(oldMask + 1, migrated + count);
+        for (; migrated < end; migrated++) {
+            long from = oldSlots + (long) migrated * SLOT_SIZE;
+            if (Memory.getInt(from + LENGTH) != 0) {
+                Memory.copy(from, freeSlot(Memory.getLong(from + HASH)), SLOT_SIZE);
+            }
+        }
+        if (migrated > oldMask) {
+            oldTable = null;
+            oldSlots = 0;
+        }
+    }
+
+    private void allocate(int capacity) {
+        table = Arena.ofAuto().allocate((long) capacity * SLOT_SIZE, SLOT_SIZE);
+        slots = table.address();
+        mask = capacity - 1;
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        threshold = (int) (capacity * loadFactor);
+    }
+
+    // Fibonacci hashing: the name words leave many low bits zero, which linear probing would turn
+    // into long clusters, so the index is taken from the top bits of the product.
+    private static int index(long hash, int shift) {
+        return (int) ((hash * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    // Number of stations.
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    // Id of the station of the last recorded measurement.
+    int lastId() {
+        return lastId;
+    }
+
+    @Override
+    public void forEach(BiConsumer<byte[], Aggregate> action) {
+        forEach((id, name, aggregate) -> action.accept(name, aggregate));
+    }
+
+    void forEach(StationConsumer action) {
+        if (oldTable != null) {
+            migrate(oldMask + 1);
+        }
+        for (int i = 0; i <= mask; i++) {
+            long slot = slots + (long) i * SLOT_SIZE;
+            int length = Memory.getInt(slot + LENGTH);
+            if (length != 0) {
+                Aggregate aggregate = new Aggregate();
+                aggregate.add(Memory.getInt(slot + MIN), Memory.getInt(slot + MAX), Memory.getLong(slot + SUM), Memory.getLong(slot + COUNT));
+                action.accept(Memory.getInt(slot + ID), Memory.copy(Memory.getLong(slot + NAME), length), aggregate);
+            }
+        }
+    }
+
+    interface StationConsumer {
+        void accept(int id, byte[] name, Aggregate aggregate);
+    }
+}
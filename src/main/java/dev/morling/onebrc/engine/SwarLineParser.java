@@ -0,0 +1,141 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+/**
+ * The parse loop of {@code CalculateAverage_thomaswue}: reads a long at a time, finds the delimiter
+ * with SWAR and converts the temperature without branches.
+ */
+public final class SwarLineParser implements LineParser {
+
+    @Override
+    public void parse(long start, long end, AggregationTable table) {
+        long pos = start;
+        long word = Memory.getLong(pos);
+        long delimiter = findDelimiter(word);
+        while (pos < end) {
+            long nameAddress = pos;
+            long hash;
+
+            // Search for ';', one long at a time.
+            if (delimiter != 0) {
+                int index = Long.numberOfTrailingZeros(delimiter) >>> 3;
+                pos += index;
+                word = mask(word, index);
+                hash = word;
+
+                long numberWord = Memory.getLong(pos + 1);
+                int decimalSepPos = decimalSepPos(numberWord);
+                int number = convertIntoNumber(decimalSepPos, numberWord);
+                long nextLine = pos + (decimalSepPos >>> 3) + 4;
+                long nextWord = Memory.getLong(nextLine);
+
+                if (table.tryRecord(hash, word, number)) {
+                    pos = nextLine;
+                    word = nextWord;
+                    delimiter = findDelimiter(nextWord);
+                    continue;
+                }
+                pos = nextLine;
+                table.record(nameAddress, index, hash, number);
+            }
+            else {
+                pos += 8;
+                hash = word;
+                long prevWord = word;
+                word = Memory.getLong(pos);
+                delimiter = findDelimiter(word);
+                if (delimiter != 0) {
+                    int index = Long.numberOfTrailingZeros(delimiter) >>> 3;
+                    pos += index;
+                    word = mask(word, index);
+                    hash ^= word;
+
+                    long numberWord = Memory.getLong(pos + 1);
+                    int decimalSepPos = decimalSepPos(numberWord);
+                    int number = convertIntoNumber(decimalSepPos, numberWord);
+                    long nameEnd = pos;
+                    pos += (decimalSepPos >>> 3) + 4;
+                    if (!table.tryRecord(hash, word, prevWord, number)) {
+                        table.record(nameAddress, (int) (nameEnd - nameAddress), hash, number);
+                    }
+                }
+                else {
+                    pos += 8;
+                    hash ^= word;
+                    while (true) {
+                        word = Memory.getLong(pos);
+                        delimiter = findDelimiter(word);
+                        if (delimiter != 0) {
+                            int index = Long.numberOfTrailingZeros(delimiter) >>> 3;
+                            pos += index;
+                            word = mask(word, index);
+                            hash ^= word;
+                            break;
+                        }
+                        else {
+                            pos += 8;
+                            hash ^= word;
+                        }
+                    }
+
+                    // Save length of name for later.
+                    int nameLength = (int) (pos - nameAddress);
+                    long numberWord = Memory.getLong(pos + 1);
+                    int decimalSepPos = decimalSepPos(numberWord);
+                    int number = convertIntoNumber(decimalSepPos, numberWord);
+                    pos += (decimalSepPos >>> 3) + 4;
+                    table.record(nameAddress, nameLength, hash, number);
+                }
+            }
+
+            word = Memory.getLong(pos);
+            delimiter = findDelimiter(word);
+        }
+    }
+
+    // The 4th binary digit of the ascii of a digit is 1 while that of the '.' is 0.
+    // This finds the decimal separator, the value can be 12, 20, 28.
+    public static int decimalSepPos(long numberWord) {
+        return Long.numberOfTrailingZeros(~numberWord & 0x10101000);
+    }
+
+    public static long mask(long word, long pos) {
+        return (word << ((7 - pos) << 3));
+    }
+
+    // Special method to convert a number in the ascii number into an int without branches created by Quan Anh Mai.
+    public static int convertIntoNumber(int decimalSepPos, long numberWord) {
+        int shift = 28 - decimalSepPos;
+        // signed is -1 if negative, 0 otherwise
+        long signed = (~numberWord << 59) >> 63;
+        long designMask = ~(signed & 0xFF);
+        // Align the number to a specific position and transform the ascii to digit value
+        long digits = ((numberWord & designMask) << shift) & 0x0F000F0F00L;
+        // Now digits is in the form 0xUU00TTHH00 (UU: units digit, TT: tens digit, HH: hundreds digit)
+        // 0xUU00TTHH00 * (100 * 0x1000000 + 10 * 0x10000 + 1) =
+        // 0x000000UU00TTHH00 + 0x00UU00TTHH000000 * 10 + 0xUU00TTHH00000000 * 100
+        long absValue = ((digits * 0x640a0001) >>> 32) & 0x3FF;
+        long value = (absValue ^ signed) - signed;
+        return (int) value;
+    }
+
+    public static long findDelimiter(long word) {
+        long input = word ^ 0x3B3B3B3B3B3B3B3BL;
+        long tmp = (input - 0x0101010101010101L) & ~input & 0x8080808080808080L;
+        return tmp;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.util.Arrays;
+
+/**
+ * Counts of measurements per temperature, compact for the many stations of high-cardinality inputs
+ * that see few distinct temperatures. Up to {@link #SPARSE_LIMIT} distinct temperatures are kept as
+ * packed ints (count in the high 21 bits, temperature index in the low 11); beyond that, or once a
+ * count does not fit, as one {@code char} counter per temperature, whose overflows are carried into
+ * {@code long}s allocated on the first one.
+ */
+final class TemperatureCounts {
+
+    static final int BUCKETS = Aggregate.MAX_TEMP - Aggregate.MIN_TEMP + 1;
+
+    // 16 ints, a single cache line to scan per measurement.
+    private static final int SPARSE_LIMIT = 16;
+    private static final int INDEX_BITS = 11;
+    private static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+    private static final long MAX_SPARSE_COUNT = (1L << (Integer.SIZE - INDEX_BITS)) - 1;
+
+    private int[] sparse = new int[4];
+    private int entries;
+    private char[] dense;
+    private long[] carries;
+
+    void record(int value) {
+        add(value - Aggregate.MIN_TEMP, 1);
+    }
+
+    void add(TemperatureCounts other) {
+        if (other.dense != null) {
+            for (int index = 0; index < BUCKETS; index++) {
+                long count = other.count(index);
+                if (count != 0) {
+                    add(index, count);
+                }
+            }
+        }
+        else {
+            for (int i = 0; i < other.entries; i++) {
+                add(other.sparse[i] & INDEX_MASK, other.sparse[i] >>> INDEX_BITS);
+            }
+        }
+    }
+
+    private void add(int index, long count) {
+        if (dense == null) {
+            for (int i = 0; i < entries; i++) {
+                int entry = sparse[i];
+                if ((entry & INDEX_MASK) == index) {
+                    long total = (entry >>> INDEX_BITS) + count;
+                    if (total <= MAX_SPARSE_COUNT) {
+                        sparse[i] = (int) (total << INDEX_BITS) | index;
+                        return;
+                    }
+                    toDense();
+                    break;
+                }
+            }
+            if (dense == null) {
+                if (entries < SPARSE_LIMIT && count <= MAX_SPARSE_COUNT) {
+                    if (entries == sparse.length) {
+                        sparse = Arrays.copyOf(sparse, entries * 2);
+                    }
+                    sparse[entries++] = (int) (count << INDEX_BITS) | index;
+                    return;
+                }
+                toDense();
+            }
+        }
+        long total = dense[index] + count;
+        dense[index] = (char) total;
+        if (total > Character.MAX_VALUE) {
+            if (carries == null) {
+                carries = new long[BUCKETS];
+            }
+            carries[index] += total & ~(long) Character.MAX_VALUE;
+        }
+    }
+
+    private void toDense() {
+        int[] entries = Arrays.copyOf(sparse, this.entries);
+        dense = new char[BUCKETS];
+        sparse = null;
+        this.entries = 0;
+        for (int entry : entries) {
+            add(entry & INDEX_MASK, entry >>> INDEX_BITS);
+        }
+    }
+
+    private long count(int index) {
+        return dense[index] + (carries != null ? carries[index] : 0);
+    }
+
+    /**
+     * Returns the index of the temperature at which the running count, in temperature order, reaches
+     * {@code rank}, or -1 if it never does.
+     */
+    int indexOfRank(long rank) {
+        long seen = 0;
+        if (dense != null) {
+            for (int index = 0; index < BUCKETS; index++) {
+                seen += count(index);
+                if (seen >= rank) {
+                    return index;
+                }
+            }
+            return -1;
+        }
+        // Sorting by the packed ints would sort by count first, so the index is moved to the top.
+        long[] sorted = new long[entries];
+        for (int i = 0; i < entries; i++) {
+            sorted[i] = ((long) (sparse[i] & INDEX_MASK) << Integer.SIZE) | (sparse[i] >>> INDEX_BITS);
+        }
+        Arrays.sort(sorted);
+        for (long entry : sorted) {
+            seen += (int) entry;
+            if (seen >= rank) {
+                return (int) (entry >>> Integer.SIZE);
+            }
+        }
+        return -1;
+    }
+}
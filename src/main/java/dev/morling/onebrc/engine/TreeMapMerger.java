@@ -0,0 +1,45 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Accumulates results sequentially into a {@link TreeMap}, for simplicity.
+ */
+public final class TreeMapMerger implements Merger {
+
+    @Override
+    public SortedMap<String, Aggregate> merge(List<? extends AggregationTable> tables) {
+        TreeMap<String, Aggregate> result = new TreeMap<>();
+        for (AggregationTable table : tables) {
+            table.forEach((name, aggregate) -> {
+                String key = new String(name, StandardCharsets.UTF_8);
+                Aggregate current = result.get(key);
+                if (current == null) {
+                    result.put(key, aggregate.copy());
+                }
+                else {
+                    current.add(aggregate);
+                }
+            });
+        }
+        return result;
+    }
+}
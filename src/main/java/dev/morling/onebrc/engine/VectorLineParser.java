@@ -0,0 +1,111 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.engine;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The delimiter search of {@code CalculateAverage_merykitty}: loads the start of each line into a
+ * {@link ByteVector} of the given species and finds the {@code ';'} with one compare, so that a
+ * name shorter than the vector takes no loop. The name is then hashed as by {@link SwarLineParser},
+ * word by word, so that both parsers record into the same tables.
+ * <p>
+ * Names longer than a vector take one more compare per vector. A vector load may read a whole
+ * vector past the start of the line, which is more than {@link LineParser#OVERREAD}: the lines
+ * within a vector of the end of the chunk are left to {@link SwarLineParser}. Requires
+ * {@code --add-modules jdk.incubator.vector}.
+ */
+public final class VectorLineParser implements LineParser {
+
+    // The whole address space, so that vectors are loaded by absolute address as in Memory.
+    private static final MemorySegment ALL = MemorySegment.NULL.reinterpret(Long.MAX_VALUE);
+
+    private final VectorSpecies<Byte> species;
+    private final SwarLineParser scalar = new SwarLineParser();
+
+    public VectorLineParser(VectorSpecies<Byte> species) {
+        if (species.vectorByteSize() > Long.SIZE) {
+            throw new IllegalArgumentException("At most " + Long.SIZE + " lanes are supported: " + species);
+        }
+        this.species = species;
+    }
+
+    public VectorSpecies<Byte> species() {
+        return species;
+    }
+
+    @Override
+    public void parse(long start, long end, AggregationTable table) {
+        int vectorSize = species.vectorByteSize();
+        long pos = start;
+        long limit = end - vectorSize;
+        lines: while (pos <= limit) {
+            long nameAddress = pos;
+            long delimiters = delimiters(pos);
+            while (delimiters == 0) {
+                pos += vectorSize;
+                if (pos > limit) {
+                    pos = nameAddress;
+                    break lines;
+                }
+                delimiters = delimiters(pos);
+            }
+            pos += Long.numberOfTrailingZeros(delimiters);
+            int nameLength = (int) (pos - nameAddress);
+            long numberWord = Memory.getLong(pos + 1);
+            int decimalSepPos = SwarLineParser.decimalSepPos(numberWord);
+            int number = SwarLineParser.convertIntoNumber(decimalSepPos, numberWord);
+            pos += (decimalSepPos >>> 3) + 4;
+
+            long word = SwarLineParser.mask(Memory.getLong(nameAddress + (nameLength & ~7)), nameLength & 7);
+            if (nameLength < 8) {
+                if (!table.tryRecord(word, word, number)) {
+                    table.record(nameAddress, nameLength, word, number);
+                }
+            }
+            else if (nameLength < 16) {
+                long prevWord = Memory.getLong(nameAddress);
+                long hash = prevWord ^ word;
+                if (!table.tryRecord(hash, word, prevWord, number)) {
+                    table.record(nameAddress, nameLength, hash, number);
+                }
+            }
+            else {
+                long hash = word;
+                for (long address = nameAddress; address < nameAddress + (nameLength & ~7); address += 8) {
+                    hash ^= Memory.getLong(address);
+                }
+                table.record(nameAddress, nameLength, hash, number);
+            }
+        }
+        scalar.parse(pos, end, table);
+    }
+
+    // One bit per ';' among the vector at the address.
+    private long delimiters(long address) {
+        return ByteVector.fromMemorySegment(species, ALL, address, ByteOrder.LITTLE_ENDIAN).compare(VectorOperators.EQ, (byte) ';').toLong();
+    }
+
+    @Override
+    public String toString() {
+        return "vector" + species.vectorBitSize();
+    }
+}
@@ -0,0 +1,468 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.evaluation;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Self-contained replacement for the hyperfine/jq/bc pipeline of {@code evaluate.sh}: runs the
+ * {@code calculate_average_<fork>.sh} scripts in fresh JVMs, optionally pinned to a CPU set with
+ * {@code taskset}, and records wall, user and system time, peak RSS and GC count per run. The output
+ * of every run is validated against the {@code .out} file next to the input. Results are printed as
+ * trimmed means with confidence intervals (see {@link Statistics}) and can be written as JSON.
+ * <p>
+ * Like {@code evaluate.sh}, {@code prepare_<fork>.sh} is sourced first (its environment is used for
+ * all runs of the fork), and {@code measurements.txt} is linked to each input in turn.
+ * <p>
+ * User and system time are taken from the {@code times} builtin of the shell which runs the script,
+ * so they include all processes it started. The peak RSS is the sum of the peaks of these processes,
+ * sampled from {@code /proc} (Linux only). GCs are counted from a GC log enabled through
+ * {@code JDK_JAVA_OPTIONS} for every JVM of the run (not for native images).
+ * <p>
+ * With {@code --history}, the run times are also checked by the {@link RegressionGate} against the
+ * {@link History} of earlier evaluations, and appended to it unless they are a regression. The exit
+ * code is 1 for failed runs and 2 for a regression.
+ */
+public class EvaluationRunner {
+
+    private static final Path MEASUREMENTS = Path.of("measurements.txt");
+    private static final String SDKMAN_INIT = "$HOME/.sdkman/bin/sdkman-init.sh";
+    private static final Pattern GC_ID = Pattern.compile("GC\\((\\d+)\\)");
+    private static final long SAMPLE_MILLIS = 20;
+
+    /**
+     * The runs of one fork on one input.
+     */
+    public record Result(String fork, Path input, List<RunMetrics> runs, Statistics statistics) {
+
+        public boolean valid() {
+            return !runs.isEmpty() && runs.stream().allMatch(RunMetrics::valid);
+        }
+    }
+
+    private final int runs;
+    private final int warmups;
+    private final String cpus;
+    private final long timeoutSeconds;
+
+    public EvaluationRunner(int runs, int warmups, String cpus, long timeoutSeconds) {
+        this.runs = runs;
+        this.warmups = warmups;
+        this.cpus = cpus;
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int runs = 5;
+        int warmups = 1;
+        String cpus = null;
+        long timeout = 300;
+        Path json = null;
+        Path history = null;
+        double threshold = 5;
+        double alpha = 0.05;
+        boolean record = true;
+        List<Path> inputs = new ArrayList<>();
+        List<String> forks = new ArrayList<>();
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--runs=")) {
+                runs = Integer.parseInt(value);
+            }
+            else if (arg.startsWith("--warmup=")) {
+                warmups = Integer.parseInt(value);
+            }
+            else if (arg.startsWith("--cpus=")) {
+                cpus = value;
+            }
+            else if (arg.startsWith("--timeout=")) {
+                timeout = Long.parseLong(value);
+            }
+            else if (arg.startsWith("--input=")) {
+                inputs.add(Path.of(value));
+            }
+            else if (arg.startsWith("--json=")) {
+                json = Path.of(value);
+            }
+            else if (arg.startsWith("--history=")) {
+                history = Path.of(value);
+            }
+            else if (arg.startsWith("--threshold=")) {
+                threshold = Double.parseDouble(value);
+            }
+            else if (arg.startsWith("--alpha=")) {
+                alpha = Double.parseDouble(value);
+            }
+            else if (arg.equals("--no-record")) {
+                record = false;
+            }
+            else if (arg.startsWith("--")) {
+                forks.clear();
+                break;
+            }
+            else {
+                forks.add(arg.startsWith("CalculateAverage_") ? arg.substring("CalculateAverage_".length()) : arg);
+            }
+        }
+        if (forks.isEmpty() || runs < 1) {
+            System.out.println("""
+                    Usage: evaluate_runner.sh [options] <fork> (<fork 2> ...)
+                      --runs=<n>        timed runs per fork and input (default 5)
+                      --warmup=<n>      untimed runs before (default 1)
+                      --input=<file>    input, repeatable (default measurements.txt); validated against <file>.out
+                      --cpus=<list>     CPU list to pin the runs to with taskset, e.g. 0-7
+                      --timeout=<s>     time limit per run (default 300)
+                      --json=<file>     also write the results as JSON
+                      --history=<file>  compare with and append to the stored results (regression gate)
+                      --threshold=<%>   slowdown that fails the gate when significant (default 5)
+                      --alpha=<p>       significance level of the Mann-Whitney test (default 0.05)
+                      --no-record       do not append the results to the history""");
+            System.exit(1);
+        }
+        if (inputs.isEmpty()) {
+            inputs.add(MEASUREMENTS);
+        }
+
+        List<Result> results = new EvaluationRunner(runs, warmups, cpus, timeout).evaluate(forks, inputs);
+        System.out.println();
+        System.out.println("Summary");
+        for (Result result : results) {
+            System.out.println("  " + summary(result));
+        }
+        if (json != null) {
+            Files.writeString(json, toJson(results, runs, warmups, cpus));
+        }
+        if (!results.stream().allMatch(Result::valid)) {
+            System.exit(1);
+        }
+        if (history != null && gate(results, history, new RegressionGate(threshold, alpha), record)) {
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Checks the results against the history and records those which are not regressions.
+     *
+     * @return whether there is a regression
+     */
+    private static boolean gate(List<Result> results, Path historyFile, RegressionGate gate, boolean record) throws IOException {
+        History history = History.read(historyFile);
+        List<RegressionGate.Verdict> verdicts = new ArrayList<>();
+        Instant now = Instant.now();
+        for (Result result : results) {
+            String shape = History.shape(result.input());
+            double[] times = result.runs().stream().mapToDouble(RunMetrics::wall).toArray();
+            RegressionGate.Verdict verdict = gate.check(result.fork(), shape, times, history.entries(result.fork(), shape));
+            verdicts.add(verdict);
+            if (record && !verdict.regression()) {
+                History.append(historyFile, new History.Entry(result.fork(), shape, now, times));
+            }
+        }
+        System.out.println();
+        System.out.println("Regression gate");
+        System.out.print(RegressionGate.report(verdicts));
+        return verdicts.stream().anyMatch(RegressionGate.Verdict::regression);
+    }
+
+    /**
+     * Runs every fork on every input, restoring {@code measurements.txt} afterwards.
+     */
+    public List<Result> evaluate(List<String> forks, List<Path> inputs) throws IOException, InterruptedException {
+        for (String fork : forks) {
+            if (!Files.exists(script(fork))) {
+                throw new IllegalArgumentException(script(fork) + " does not exist");
+            }
+        }
+        Path previousLink = Files.isSymbolicLink(MEASUREMENTS) ? Files.readSymbolicLink(MEASUREMENTS) : null;
+        List<Result> results = new ArrayList<>();
+        try {
+            for (String fork : forks) {
+                Map<String, String> environment = prepare(fork);
+                for (Path input : inputs) {
+                    link(input);
+                    results.add(environment == null ? new Result(fork, input, List.of(), Statistics.of(new double[0])) : run(fork, input, environment));
+                }
+            }
+        }
+        finally {
+            if (Files.isSymbolicLink(MEASUREMENTS)) {
+                Files.delete(MEASUREMENTS);
+            }
+            if (previousLink != null) {
+                Files.createSymbolicLink(MEASUREMENTS, previousLink);
+            }
+        }
+        return results;
+    }
+
+    private Result run(String fork, Path input, Map<String, String> environment) throws IOException, InterruptedException {
+        String expected = expectedOutput(input);
+        if (expected == null) {
+            System.out.println("WARNING: no " + outFile(input) + ", the output is not validated");
+        }
+        List<RunMetrics> metrics = new ArrayList<>();
+        for (int i = 0; i < warmups + runs; i++) {
+            boolean warmup = i < warmups;
+            RunMetrics run = runOnce(fork, environment, expected);
+            System.out.printf(Locale.ROOT, "%s %s %s %d: %.3f s%s%n", fork, input, warmup ? "warmup" : "run", (warmup ? i : i - warmups) + 1, run.wall(),
+                    run.valid() ? "" : run.exitCode() == 0 ? " INVALID OUTPUT" : " FAILED (exit code " + run.exitCode() + ")");
+            if (!warmup || !run.valid()) {
+                metrics.add(run);
+            }
+            if (!run.valid()) {
+                break;
+            }
+        }
+        double[] times = metrics.stream().mapToDouble(RunMetrics::wall).toArray();
+        return new Result(fork, input, metrics, Statistics.of(times));
+    }
+
+    private RunMetrics runOnce(String fork, Map<String, String> environment, String expected) throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("1brc-run");
+        try {
+            Path out = directory.resolve("stdout");
+            Path times = directory.resolve("times");
+            String pin = cpus == null ? "" : "taskset -c " + cpus + " ";
+            ProcessBuilder builder = new ProcessBuilder("bash", "-c", pin + "\"$1\" > \"$2\"; status=$?; times > \"$3\"; exit $status", "bash",
+                    script(fork).toString(), out.toString(), times.toString());
+            builder.environment().clear();
+            builder.environment().putAll(environment);
+            String gcLog = "-Xlog:gc:file=" + directory.resolve("gc-%p.log");
+            builder.environment().merge("JDK_JAVA_OPTIONS", gcLog, (existing, added) -> existing + " " + added);
+            builder.redirectError(directory.resolve("stderr").toFile());
+
+            long start = System.nanoTime();
+            Process process = builder.start();
+            Map<Long, Long> peaks = new HashMap<>();
+            while (!process.waitFor(SAMPLE_MILLIS, TimeUnit.MILLISECONDS)) {
+                samplePeakRss(process.toHandle(), peaks);
+                if (System.nanoTime() - start > TimeUnit.SECONDS.toNanos(timeoutSeconds)) {
+                    process.descendants().forEach(ProcessHandle::destroyForcibly);
+                    process.destroyForcibly().waitFor();
+                    break;
+                }
+            }
+            double wall = (System.nanoTime() - start) / 1e9;
+            int exitCode = process.exitValue();
+
+            double[] userAndSys = childTimes(times);
+            boolean valid = exitCode == 0 && (expected == null || Files.readAllLines(out, StandardCharsets.UTF_8).stream().anyMatch(line -> line.strip().equals(expected)));
+            if (exitCode != 0) {
+                System.out.print(Files.readString(directory.resolve("stderr")));
+            }
+            long peakRss = peaks.isEmpty() ? -1 : peaks.values().stream().mapToLong(Long::longValue).sum();
+            return new RunMetrics(wall, userAndSys[0], userAndSys[1], peakRss, gcCount(directory), exitCode, valid);
+        }
+        finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    /**
+     * Sources the prepare script of the fork (after sdkman, if installed) and returns the resulting
+     * environment, or {@code null} if it failed.
+     */
+    private static Map<String, String> prepare(String fork) throws IOException, InterruptedException {
+        Path prepare = Path.of("prepare_" + fork + ".sh");
+        if (!Files.exists(prepare)) {
+            return new HashMap<>(System.getenv());
+        }
+        Process process = new ProcessBuilder("bash", "-c",
+                "[ -f \"" + SDKMAN_INIT + "\" ] && source \"" + SDKMAN_INIT + "\"; source \"./$1\" 1>&2 || exit 1; env -0", "bash", prepare.toString())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        String environment = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        if (process.waitFor() != 0) {
+            System.out.println("FAILURE: " + prepare + " failed");
+            return null;
+        }
+        Map<String, String> variables = new HashMap<>();
+        for (String variable : environment.split("\0")) {
+            int separator = variable.indexOf('=');
+            if (separator > 0) {
+                variables.put(variable.substring(0, separator), variable.substring(separator + 1));
+            }
+        }
+        return variables;
+    }
+
+    private static void link(Path input) throws IOException {
+        if (input.normalize().equals(MEASUREMENTS)) {
+            return;
+        }
+        if (Files.exists(MEASUREMENTS, LinkOption.NOFOLLOW_LINKS) && !Files.isSymbolicLink(MEASUREMENTS)) {
+            throw new IllegalStateException(MEASUREMENTS + " is a regular file; move it aside or pass it as --input");
+        }
+        Files.deleteIfExists(MEASUREMENTS);
+        Files.createSymbolicLink(MEASUREMENTS, input.toAbsolutePath());
+    }
+
+    private static Path script(String fork) {
+        return Path.of("./calculate_average_" + fork + ".sh");
+    }
+
+    private static Path outFile(Path input) {
+        String name = input.getFileName().toString();
+        return input.resolveSibling((name.endsWith(".txt") ? name.substring(0, name.length() - 4) : name) + ".out");
+    }
+
+    private static String expectedOutput(Path input) throws IOException {
+        Path out = outFile(input);
+        return Files.exists(out) ? Files.readString(out, StandardCharsets.UTF_8).strip() : null;
+    }
+
+    // The second line of the output of "times": user and system time of the children of the shell.
+    private static double[] childTimes(Path times) throws IOException {
+        List<String> lines = Files.exists(times) ? Files.readAllLines(times) : List.of();
+        if (lines.size() < 2) {
+            return new double[]{ -1, -1 };
+        }
+        String[] parts = lines.get(1).strip().split("\\s+");
+        return new double[]{ shellDuration(parts[0]), shellDuration(parts[1]) };
+    }
+
+    // "1m2.345s"
+    private static double shellDuration(String duration) {
+        int minutes = duration.indexOf('m');
+        return Integer.parseInt(duration.substring(0, minutes)) * 60 + Double.parseDouble(duration.substring(minutes + 1, duration.length() - 1));
+    }
+
+    // Keeps the highest VmHWM seen for each process of the tree.
+    private static void samplePeakRss(ProcessHandle root, Map<Long, Long> peaks) {
+        Stream.concat(Stream.of(root), root.descendants()).forEach(process -> {
+            try {
+                for (String line : Files.readAllLines(Path.of("/proc", Long.toString(process.pid()), "status"))) {
+                    if (line.startsWith("VmHWM:")) {
+                        long kb = Long.parseLong(line.substring("VmHWM:".length()).replace("kB", "").strip());
+                        peaks.merge(process.pid(), kb, Math::max);
+                    }
+                }
+            }
+            catch (IOException | UncheckedIOException e) {
+                // Not Linux, or the process is gone already.
+            }
+        });
+    }
+
+    private static int gcCount(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> logs = files.filter(file -> file.getFileName().toString().startsWith("gc-")).toList();
+            if (logs.isEmpty()) {
+                return -1;
+            }
+            int count = 0;
+            for (Path log : logs) {
+                Set<String> ids = new HashSet<>();
+                Matcher matcher = GC_ID.matcher(Files.readString(log));
+                while (matcher.find()) {
+                    ids.add(matcher.group(1));
+                }
+                count += ids.size();
+            }
+            return count;
+        }
+    }
+
+    static String summary(Result result) {
+        if (!result.valid()) {
+            return result.fork() + " " + result.input() + ": command failed or output did not match";
+        }
+        Statistics statistics = result.statistics();
+        List<RunMetrics> runs = result.runs();
+        return String.format(Locale.ROOT, "%s %s: trimmed mean %.3f s (95%% CI %.3f-%.3f), user %.2f s, sys %.2f s, peak RSS %s, GCs %s",
+                result.fork(), result.input(), statistics.trimmedMean(), statistics.ciLow(), statistics.ciHigh(),
+                runs.stream().mapToDouble(RunMetrics::user).average().orElse(-1), runs.stream().mapToDouble(RunMetrics::sys).average().orElse(-1),
+                runs.get(0).peakRssKb() < 0 ? "n/a" : runs.stream().mapToLong(RunMetrics::peakRssKb).max().getAsLong() / 1024 + " MB",
+                runs.get(0).gcCount() < 0 ? "n/a" : Integer.toString(runs.stream().mapToInt(RunMetrics::gcCount).max().getAsInt()));
+    }
+
+    static String toJson(List<Result> results, int runs, int warmups, String cpus) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"timestamp\": ").append(quote(Instant.now().toString()))
+                .append(",\n  \"cpus\": ").append(cpus == null ? "null" : quote(cpus))
+                .append(",\n  \"runs\": ").append(runs)
+                .append(",\n  \"warmup\": ").append(warmups)
+                .append(",\n  \"results\": [");
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            Statistics statistics = result.statistics();
+            json.append(i == 0 ? "\n" : ",\n")
+                    .append("    {\"fork\": ").append(quote(result.fork()))
+                    .append(", \"input\": ").append(quote(result.input().toString()))
+                    .append(", \"valid\": ").append(result.valid())
+                    .append(", \"trimmedMean\": ").append(number(statistics.trimmedMean()))
+                    .append(", \"standardDeviation\": ").append(number(statistics.standardDeviation()))
+                    .append(", \"ci95\": [").append(number(statistics.ciLow())).append(", ").append(number(statistics.ciHigh())).append("]")
+                    .append(", \"runs\": [");
+            for (int j = 0; j < result.runs().size(); j++) {
+                RunMetrics run = result.runs().get(j);
+                json.append(j == 0 ? "" : ", ")
+                        .append("{\"wall\": ").append(number(run.wall()))
+                        .append(", \"user\": ").append(number(run.user()))
+                        .append(", \"sys\": ").append(number(run.sys()))
+                        .append(", \"peakRssKb\": ").append(run.peakRssKb())
+                        .append(", \"gcCount\": ").append(run.gcCount())
+                        .append(", \"exitCode\": ").append(run.exitCode())
+                        .append(", \"valid\": ").append(run.valid()).append("}");
+            }
+            json.append("]}");
+        }
+        return json.append("\n  ]\n}\n").toString();
+    }
+
+    private static String number(double value) {
+        return Double.isFinite(value) ? String.format(Locale.ROOT, "%.6f", value) : "null";
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"' -> quoted.append("\\\"");
+                case '\\' -> quoted.append("\\\\");
+                default -> {
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    }
+                    else {
+                        quoted.append(c);
+                    }
+                }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
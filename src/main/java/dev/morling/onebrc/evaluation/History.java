@@ -0,0 +1,82 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.evaluation;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+/**
+ * Stored run times of earlier evaluations, per fork and input shape (the input file name without
+ * {@code .txt}, e.g. {@code measurements-10000-unique-keys}), so that a file such as
+ * {@code measurements_1B.txt} is compared with itself across machines' paths.
+ * <p>
+ * One line per evaluation, tab-separated: fork, shape, timestamp, comma-separated wall times in
+ * seconds. The file is only ever appended to and can be kept under version control.
+ */
+public final class History {
+
+    public record Entry(String fork, String shape, Instant timestamp, double[] times) {
+
+        public Statistics statistics() {
+            return Statistics.of(times);
+        }
+    }
+
+    private final List<Entry> entries;
+
+    private History(List<Entry> entries) {
+        this.entries = entries;
+    }
+
+    public static String shape(Path input) {
+        String name = input.getFileName().toString();
+        return name.endsWith(".txt") ? name.substring(0, name.length() - 4) : name;
+    }
+
+    public static History read(Path file) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                if (line.isBlank() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                double[] times = Arrays.stream(fields[3].split(",")).mapToDouble(Double::parseDouble).toArray();
+                entries.add(new Entry(fields[0], fields[1], Instant.parse(fields[2]), times));
+            }
+        }
+        return new History(entries);
+    }
+
+    public List<Entry> entries(String fork, String shape) {
+        return entries.stream().filter(entry -> entry.fork().equals(fork) && entry.shape().equals(shape)).toList();
+    }
+
+    public static void append(Path file, Entry entry) throws IOException {
+        String times = Arrays.stream(entry.times()).mapToObj(time -> String.format(Locale.ROOT, "%.6f", time)).collect(Collectors.joining(","));
+        String line = String.join("\t", entry.fork(), entry.shape(), entry.timestamp().toString(), times) + "\n";
+        Files.writeString(file, line, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+}
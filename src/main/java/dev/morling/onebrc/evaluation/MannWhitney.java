@@ -0,0 +1,127 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.evaluation;
+
+import java.util.Arrays;
+
+/**
+ * One-sided Mann–Whitney U test: how likely is it that samples at least as much slower as
+ * {@code current} is than {@code baseline} come from the same distribution. Exact for small samples
+ * without ties (the usual 5 against 5 runs), normal approximation with tie and continuity correction
+ * otherwise.
+ */
+public final class MannWhitney {
+
+    private static final int EXACT_LIMIT = 20;
+
+    private MannWhitney() {
+    }
+
+    /**
+     * Returns the p-value of the hypothesis that {@code current} is stochastically greater (slower)
+     * than {@code baseline}.
+     */
+    public static double pGreater(double[] current, double[] baseline) {
+        int n1 = current.length;
+        int n2 = baseline.length;
+        if (n1 == 0 || n2 == 0) {
+            return 1;
+        }
+        // U: pairs in which the current run is slower, ties count half.
+        double u = 0;
+        boolean ties = false;
+        for (double c : current) {
+            for (double b : baseline) {
+                if (c > b) {
+                    u += 1;
+                }
+                else if (c == b) {
+                    u += 0.5;
+                    ties = true;
+                }
+            }
+        }
+        if (!ties && n1 <= EXACT_LIMIT && n2 <= EXACT_LIMIT) {
+            return exactUpperTail(n1, n2, (int) u);
+        }
+        return normalUpperTail(current, baseline, u);
+    }
+
+    // P(U >= u) under the null hypothesis, counting the arrangements with a given U.
+    private static double exactUpperTail(int n1, int n2, int u) {
+        int max = n1 * n2;
+        // ways[i][j][k]: arrangements of i current and j baseline values with U = k.
+        double[][][] ways = new double[n1 + 1][n2 + 1][max + 1];
+        for (int i = 0; i <= n1; i++) {
+            for (int j = 0; j <= n2; j++) {
+                if (i == 0 || j == 0) {
+                    ways[i][j][0] = 1;
+                    continue;
+                }
+                for (int k = 0; k <= i * j; k++) {
+                    // The largest value is either a current one (slower than all j baseline values) or a baseline one.
+                    double count = k >= j ? ways[i - 1][j][k - j] : 0;
+                    count += ways[i][j - 1][k];
+                    ways[i][j][k] = count;
+                }
+            }
+        }
+        double total = 0;
+        double tail = 0;
+        for (int k = 0; k <= max; k++) {
+            total += ways[n1][n2][k];
+            if (k >= u) {
+                tail += ways[n1][n2][k];
+            }
+        }
+        return tail / total;
+    }
+
+    private static double normalUpperTail(double[] current, double[] baseline, double u) {
+        int n1 = current.length;
+        int n2 = baseline.length;
+        double n = n1 + n2;
+        double[] all = new double[n1 + n2];
+        System.arraycopy(current, 0, all, 0, n1);
+        System.arraycopy(baseline, 0, all, n1, n2);
+        Arrays.sort(all);
+        double tieTerm = 0;
+        for (int i = 0; i < all.length;) {
+            int j = i;
+            while (j < all.length && all[j] == all[i]) {
+                j++;
+            }
+            double t = j - i;
+            tieTerm += t * t * t - t;
+            i = j;
+        }
+        double mean = n1 * n2 / 2.0;
+        double variance = n1 * n2 / 12.0 * ((n + 1) - tieTerm / (n * (n - 1)));
+        if (variance <= 0) {
+            return u > mean ? 0 : 1;
+        }
+        double z = (u - mean - 0.5) / Math.sqrt(variance);
+        return 1 - standardNormalCdf(z);
+    }
+
+    // Abramowitz and Stegun 7.1.26, accurate to about 1e-7.
+    private static double standardNormalCdf(double z) {
+        double x = Math.abs(z) / Math.sqrt(2);
+        double t = 1 / (1 + 0.3275911 * x);
+        double erf = 1 - ((((1.061405429 * t - 1.453152027) * t + 1.421413741) * t - 0.284496736) * t + 0.254829592) * t * Math.exp(-x * x);
+        return z >= 0 ? (1 + erf) / 2 : (1 - erf) / 2;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.evaluation;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compares the runs of an evaluation with the best stored evaluation (lowest trimmed mean) of the
+ * same fork and input shape. A run is a regression when it is both slower by more than the
+ * threshold and significantly slower according to a one-sided {@link MannWhitney} test; the first
+ * condition keeps significant but irrelevant differences from failing the gate, the second keeps
+ * noise from doing so.
+ */
+public final class RegressionGate {
+
+    public record Verdict(String fork, String shape, double best, double current, double deltaPercent, double pValue, boolean regression) {
+
+        public boolean hasBaseline() {
+            return !Double.isNaN(best);
+        }
+    }
+
+    private final double thresholdPercent;
+    private final double alpha;
+
+    public RegressionGate(double thresholdPercent, double alpha) {
+        this.thresholdPercent = thresholdPercent;
+        this.alpha = alpha;
+    }
+
+    public Verdict check(String fork, String shape, double[] times, List<History.Entry> history) {
+        double current = Statistics.of(times).trimmedMean();
+        History.Entry best = history.stream().min(Comparator.comparingDouble(entry -> entry.statistics().trimmedMean())).orElse(null);
+        if (best == null) {
+            return new Verdict(fork, shape, Double.NaN, current, Double.NaN, Double.NaN, false);
+        }
+        double bestMean = best.statistics().trimmedMean();
+        double delta = (current - bestMean) / bestMean * 100;
+        double p = MannWhitney.pGreater(times, best.times());
+        return new Verdict(fork, shape, bestMean, current, delta, p, delta > thresholdPercent && p < alpha);
+    }
+
+    public static String report(List<Verdict> verdicts) {
+        StringBuilder report = new StringBuilder(String.format(Locale.ROOT, "%-24s %-36s %9s %9s %8s %7s%n", "fork", "shape", "best", "current", "delta", "p"));
+        for (Verdict verdict : verdicts) {
+            if (verdict.hasBaseline()) {
+                report.append(String.format(Locale.ROOT, "%-24s %-36s %8.3fs %8.3fs %+7.1f%% %7.4f%s%n", verdict.fork(), verdict.shape(), verdict.best(), verdict.current(),
+                        verdict.deltaPercent(), verdict.pValue(), verdict.regression() ? "  REGRESSION" : ""));
+            }
+            else {
+                report.append(String.format(Locale.ROOT, "%-24s %-36s %9s %8.3fs %8s %7s  (new baseline)%n", verdict.fork(), verdict.shape(), "-", verdict.current(), "-", "-"));
+            }
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,24 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.evaluation;
+
+/**
+ * What one timed run of a solution cost. Times are in seconds; user and system time include all
+ * processes the run script started. {@code -1} stands for a metric that could not be collected
+ * (peak RSS outside of Linux, GC count of native images).
+ */
+public record RunMetrics(double wall, double user, double sys, long peakRssKb, int gcCount, int exitCode, boolean valid) {
+}
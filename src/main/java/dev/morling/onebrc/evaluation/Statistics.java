@@ -0,0 +1,51 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.evaluation;
+
+import java.util.Arrays;
+
+/**
+ * Trimmed mean of a series of run times, as reported by {@code evaluate.sh} (the fastest and the
+ * slowest run are discarded once there are at least three), with the 95% confidence interval of
+ * the mean of the remaining runs (Student's t).
+ */
+public record Statistics(int runs, double trimmedMean, double standardDeviation, double ciLow, double ciHigh) {
+
+    // t(0.975, df) for df = 1..30; 1.96 beyond.
+    private static final double[] T_975 = { 12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228, 2.201, 2.179, 2.160, 2.145,
+            2.131, 2.120, 2.110, 2.101, 2.093, 2.086, 2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042 };
+
+    public static Statistics of(double[] times) {
+        if (times.length == 0) {
+            return new Statistics(0, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+        }
+        double[] sorted = times.clone();
+        Arrays.sort(sorted);
+        double[] kept = sorted.length >= 3 ? Arrays.copyOfRange(sorted, 1, sorted.length - 1) : sorted;
+        double mean = Arrays.stream(kept).average().orElseThrow();
+        if (kept.length < 2) {
+            return new Statistics(times.length, mean, 0, mean, mean);
+        }
+        double squares = 0;
+        for (double time : kept) {
+            squares += (time - mean) * (time - mean);
+        }
+        double deviation = Math.sqrt(squares / (kept.length - 1));
+        int df = kept.length - 1;
+        double halfWidth = (df <= T_975.length ? T_975[df - 1] : 1.96) * deviation / Math.sqrt(kept.length);
+        return new Statistics(times.length, mean, deviation, mean - halfWidth, mean + halfWidth);
+    }
+}